@@ -0,0 +1,227 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import lambda.*;
+import lambda.Compiler;
+
+import static lambda.Primitives.*;
+
+/**
+ * Benchmarks for the readers, the evaluators and the decompiler.
+ * <p>
+ * This is a small stand-in for JMH, which needs a build the project doesn't have. As with JMH, each benchmark runs
+ * in a JVM of its own, forked with the options this one was started with, so that the profiles the JIT gathers for
+ * one benchmark -- of call sites shared by the evaluators, say -- don't shape the code the next one is measured
+ * with. In its fork a benchmark is set up, run for WARMUP_ITERATIONS and then for MEASURED_ITERATIONS of about a
+ * second each, and reports the mean time per operation with the standard deviation over the measured iterations,
+ * and the bytes allocated by the running thread per operation -- what JMH reports with '-prof gc'. Results are
+ * passed to a Blackhole, so the JIT can't discard the work.
+ * <p>
+ * Usage: java -cp [classes] bench.Benchmarks [substring of benchmark names]
+ */
+public class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static final String RUN = "--run";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Consumes results as JMH's Blackhole does: the JIT can't prove the comparison false, so has to compute the
+    // result, but as it is false nothing is written.
+    private static final class Blackhole {
+        private static volatile Object probe = new Object();
+        @SuppressWarnings("unused")
+        private static Object sink;
+
+        static void consume(Object o) {
+            if (o == probe) {
+                sink = o;
+            }
+        }
+    }
+
+    // The benchmarks, by name, each of which sets itself up and answers the operation to measure.
+    private static final Map<String, Supplier<Supplier<Object>>> BENCHMARKS = new LinkedHashMap<>();
+
+    private static void benchmark(String name, Supplier<Supplier<Object>> setup) {
+        BENCHMARKS.put(name, setup);
+    }
+
+    private static void measure(String name, Supplier<Object> benchmark) {
+        double[] nanos = new double[MEASURED_ITERATIONS];
+        double bytes = 0;
+        long ops = 0;
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                iteration(benchmark);
+            }
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long[] result = iteration(benchmark);
+                ops += result[0];
+                nanos[i] = (double) result[1] / result[0];
+                bytes += result[2];
+            }
+        } catch (RuntimeException | StackOverflowError e) {
+            System.out.printf("%-45s failed: %s%n", name, e);
+            return;
+        }
+        double mean = 0;
+        for (double n : nanos) {
+            mean += n / nanos.length;
+        }
+        double variance = 0;
+        for (double n : nanos) {
+            variance += (n - mean) * (n - mean) / (nanos.length - 1);
+        }
+        System.out.printf("%-45s %14.3f +- %10.3f us/op %14.0f B/op%n", name, mean / 1000, Math.sqrt(variance) / 1000,
+                bytes / ops);
+    }
+
+    // Answers {operations, elapsed nanos, allocated bytes}.
+    private static long[] iteration(Supplier<Object> benchmark) {
+        long ops = 0;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            Blackhole.consume(benchmark.get());
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return new long[]{ops, elapsed, THREADS.getCurrentThreadAllocatedBytes() - allocated};
+    }
+
+    private static Map<String, Primitive> getGlobals() {
+        Map<String, Primitive> globals = new HashMap<>();
+        globals.put("inc", INC);
+        globals.put("*", PRD);
+        globals.put("+", SUM);
+        return globals;
+    }
+
+    private static final Map<String, Primitive> GLOBALS = getGlobals();
+
+    private static Expression parse(String input) {
+        ArrayList<Expression> result = new ArrayList<>();
+        new lisp.Reader(Expressions.CONSTRUCTOR).parse(input, result::add);
+        return Expressions.substitute(result.get(0), GLOBALS);
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private static void readers() {
+        benchmark("lisp.Reader.parse 10k forms", () -> {
+            String lisp = repeat("((lambda (f) (f (lambda (x) (f x 1)))) (lambda (g y) (+ (* y 2) (inc 3))))\n",
+                    10000);
+            return () -> {
+                ArrayList<Expression> result = new ArrayList<>();
+                new lisp.Reader(Expressions.CONSTRUCTOR).parse(lisp, result::add);
+                return result;
+            };
+        });
+        benchmark("expr.Reader.parse 10 x 1000 terms", () -> {
+            StringBuilder builder = new StringBuilder("0");
+            for (int i = 1; i < 1000; i++) {
+                builder.append("+").append(i).append(i % 7 == 0 ? " * (inc 2)" : "");
+            }
+            String expr = repeat(builder.append(";\n").toString(), 10);
+            return () -> {
+                ArrayList<Expression> result = new ArrayList<>();
+                new expr.Reader(Expressions.CONSTRUCTOR).parse(expr, result::add);
+                return result;
+            };
+        });
+    }
+
+    private static void evaluators() {
+        Map<String, Function<Expression, Primitive>> engines = new LinkedHashMap<>();
+        engines.put("Evaluator", Evaluator::eval);
+        engines.put("LazyEvaluator", LazyEvaluator::eval);
+        engines.put("Machine", Machine::eval);
+        engines.put("Compiler", Compiler::eval);
+        engines.put("BytecodeCompiler", BytecodeCompiler::eval);
+        Map<String, String> workloads = new LinkedHashMap<>();
+        String two = "(lambda (f x) (f (f x)))";
+        workloads.put("2^16", "((lambda (two) ((lambda (f) (f f f f)) two inc 0)) " + two + ")");
+        workloads.put("2^8 nested", "((lambda (two) ((lambda (f) (f f (f f))) two inc 0)) " + two + ")");
+        workloads.put("(7 8)", "(7 8)");
+        workloads.put("arithmetic", "((lambda (x y) (+ (* x y) (inc (+ x y)))) 6 7)");
+        for (Map.Entry<String, String> workload : workloads.entrySet()) {
+            for (Map.Entry<String, Function<Expression, Primitive>> engine : engines.entrySet()) {
+                benchmark(engine.getKey() + ".eval " + workload.getKey(), () -> {
+                    Expression e = parse(workload.getValue());
+                    return () -> engine.getValue().apply(e);
+                });
+            }
+            benchmark("BytecodeCompiler precompiled " + workload.getKey(), () -> {
+                BytecodeCompiler.Code code = BytecodeCompiler.compile(parse(workload.getValue()));
+                return () -> code.eval(new Primitive[0], null);
+            });
+        }
+    }
+
+    private static void decompiler() {
+        Map<String, String> workloads = new LinkedHashMap<>();
+        workloads.put("(3 two)", "(3 (lambda (f x) (f (f x))))");
+        workloads.put("2^16 numeral", "((lambda (f) (f f f f)) (lambda (f x) (f (f x))))");
+        workloads.put("(lambda (f) (f (lambda (x) (f x 1))))", "(lambda (f) (f (lambda (x) (f x 1))))");
+        for (Map.Entry<String, String> workload : workloads.entrySet()) {
+            benchmark("Decompiler.toExpression " + workload.getKey(), () -> {
+                Primitive value = Compiler.eval(parse(workload.getValue()));
+                return () -> Decompiler.toExpression(value);
+            });
+        }
+    }
+
+    // Runs each benchmark whose name contains the filter in a JVM of its own, one at a time.
+    private static void fork(String filter) throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        for (String name : BENCHMARKS.keySet()) {
+            if (!name.contains(filter)) {
+                continue;
+            }
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Benchmarks.class.getName());
+            command.add(RUN);
+            command.add(name);
+            int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (status != 0) {
+                System.out.printf("%-45s failed: exit status %d%n", name, status);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        readers();
+        evaluators();
+        decompiler();
+        if (args.length == 2 && args[0].equals(RUN)) {
+            String name = args[1];
+            measure(name, BENCHMARKS.get(name).get());
+        } else {
+            fork(args.length > 0 ? args[0] : "");
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package expr;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Supplier;
 
+import lambda.AbstractReader;
 import lambda.Expression;
+import lambda.SyntaxError;
 
 import static lambda.Primitives.primitive;
 
@@ -11,44 +12,18 @@ import static lambda.Primitives.primitive;
  * @author pmilne
  */
 @SuppressWarnings("UnnecessaryInterfaceModifier, WeakerAccess")
-public class Reader {
+public class Reader extends AbstractReader {
     public final Expression.Visitor<Expression> constructor;
+    public final boolean operatorPrecedence;
 
-    public Reader(Expression.Visitor<Expression> constructor) {
+    // With 'operatorPrecedence', expressions are read by operatorPrecedenceParser rather than sumParser.
+    public Reader(Expression.Visitor<Expression> constructor, boolean operatorPrecedence) {
         this.constructor = constructor;
+        this.operatorPrecedence = operatorPrecedence;
     }
 
-    public static class TokenType {
-        public final String pattern;
-        public final VisitorMethod method;
-
-        private TokenType(String pattern, VisitorMethod method) {
-            this.pattern = pattern;
-            this.method = method;
-        }
-
-        //    http://docs.oracle.com/javase/6/docs/api/java/util/regex/Pattern.html
-        public static TokenType[] ALL = {
-                new TokenType("-?\\d+", Parser::number),
-                new TokenType("\\(", Parser::lParen),
-                new TokenType("\\)", Parser::rParen),
-                new TokenType("\\;", Parser::semicolon),
-                new TokenType("\\+", Parser::sumOp),
-                new TokenType("\\*", Parser::prodOp),
-                new TokenType("[a-zA-Z_]\\w*", Parser::symbol),
-                new TokenType("\\s+", Parser::whiteSpace)
-        };
-    }
-
-    private static String getRegex() {
-        StringBuilder buffer = new StringBuilder();
-        for (TokenType tokenType : TokenType.ALL)
-            buffer.append(String.format("|(%s)", tokenType.pattern));
-        return buffer.substring(1);
-    }
-
-    private interface VisitorMethod {
-        public Parser call(Parser t, String s);
+    public Reader(Expression.Visitor<Expression> constructor) {
+        this(constructor, false);
     }
 
     @SuppressWarnings("unused")
@@ -75,7 +50,7 @@ public class Reader {
 
     private static Parser ERROR = new Parser() {
         private Parser error(String s) {
-            throw new RuntimeException("Syntax error: " + s);
+            throw new SyntaxError(s);
         }
 
         @Override
@@ -229,11 +204,20 @@ public class Reader {
         });
     }
 
+    // A number too big for an int is a syntax error.
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new SyntaxError(s);
+        }
+    }
+
     public Parser atomParser(Parser failure, Reduction success) {
         return new DelegatingParser(failure) {
             @Override
             public Parser number(String s) {
-                return success.reduce(constructor.constant(primitive(Integer.parseInt(s))));
+                return success.reduce(constructor.constant(primitive(parseInt(s))));
             }
 
             @Override
@@ -290,27 +274,308 @@ public class Reader {
         });
     }
 
-    public static void lex(CharSequence input, Parser parser) {
-        Matcher matcher = Pattern.compile(getRegex()).matcher(input);
-        while (matcher.find()) {
-            TokenType[] types = TokenType.ALL;
-            for (int i = 0; i < types.length; i++) {
-                String s = matcher.group(i + 1); // group 0 is whole regexp
-                if (s != null) {
-//                    System.out.println("s = " + s);
-                    parser = types[i].method.call(parser, s);
-                    break;
+    // The state of an operator-precedence parse, for input that doesn't need the generality of the parser
+    // combinators above. Within a pair of parens there are only ever two pending operators -- a sum whose left
+    // operand is complete, and a product in the current summand -- so the operator stack is those two fields, and
+    // an operand is folded in as soon as the operator after it is read. Parens push the state on a chain rather than
+    // the Java stack. Each token answers a new state and nothing is mutated, as with the other parsers.
+    private class OperatorPrecedenceParser extends Parser {
+        private final Reduction outer;
+        private final OperatorPrecedenceParser enclosing; // the state outside these parens, if any
+        private final Expression sum;
+        private final Expression sumOperator;
+        private final Expression product;
+        private final Expression productOperator;
+        private final Expression term; // the application being read, if any
+
+        private OperatorPrecedenceParser(Reduction outer, OperatorPrecedenceParser enclosing, Expression sum,
+                                         Expression sumOperator, Expression product, Expression productOperator,
+                                         Expression term) {
+            this.outer = outer;
+            this.enclosing = enclosing;
+            this.sum = sum;
+            this.sumOperator = sumOperator;
+            this.product = product;
+            this.productOperator = productOperator;
+            this.term = term;
+        }
+
+        private Expression apply(Expression op, Expression arg1, Expression arg2) {
+            return arg1 == null ? arg2 : constructor.application(constructor.application(op, arg1), arg2);
+        }
+
+        private Parser error(String s) {
+            throw new SyntaxError(s);
+        }
+
+        // Juxtaposition is function application, of terms and parenthesized expressions alike.
+        private Parser operand(Expression e) {
+            Expression term0 = term == null ? e : constructor.application(term, e);
+            return new OperatorPrecedenceParser(outer, enclosing, sum, sumOperator, product, productOperator, term0);
+        }
+
+        private Expression result() {
+            return apply(sumOperator, sum, apply(productOperator, product, term));
+        }
+
+        @Override
+        public Parser number(String s) {
+            return operand(constructor.constant(primitive(parseInt(s))));
+        }
+
+        @Override
+        public Parser symbol(String s) {
+            return operand(constructor.symbol(s));
+        }
+
+        @Override
+        public Parser prodOp(String s) {
+            if (term == null) {
+                return error(s);
+            }
+            Expression product0 = apply(productOperator, product, term);
+            Expression op = constructor.symbol(s);
+            return new OperatorPrecedenceParser(outer, enclosing, sum, sumOperator, product0, op, null);
+        }
+
+        @Override
+        public Parser sumOp(String s) {
+            if (term == null) {
+                return error(s);
+            }
+            Expression sum0 = apply(sumOperator, sum, apply(productOperator, product, term));
+            return new OperatorPrecedenceParser(outer, enclosing, sum0, constructor.symbol(s), null, null, null);
+        }
+
+        @Override
+        public Parser lParen(String s) {
+            return new OperatorPrecedenceParser(outer, this, null, null, null, null, null);
+        }
+
+        @Override
+        public Parser rParen(String s) {
+            if (term == null) {
+                return error(s);
+            }
+            return enclosing == null ? outer.reduce(result()).rParen(s) : enclosing.operand(result());
+        }
+
+        @Override
+        public Parser semicolon(String s) {
+            if (term == null || enclosing != null) {
+                return error(s);
+            }
+            return outer.reduce(result()).semicolon(s);
+        }
+
+        @Override
+        public Parser whiteSpace(String s) {
+            return this;
+        }
+    }
+
+    public Parser operatorPrecedenceParser(Reduction outer) {
+        return new OperatorPrecedenceParser(outer, null, null, null, null, null, null);
+    }
+
+    // Token texts which carry no information are shared rather than cut out of the input.
+    private static final String L_PAREN = "(";
+    private static final String R_PAREN = ")";
+    private static final String SEMICOLON = ";";
+    private static final String SUM = "+";
+    private static final String PRODUCT = "*";
+    private static final String WHITE_SPACE = " ";
+    private static final String END_OF_INPUT = "end of input";
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return 'a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' || c == '_';
+    }
+
+    private static boolean isWhiteSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    // Keeps track of where each token starts, to give syntax errors a position.
+    public static class Lexer implements AbstractReader.Lexer {
+        private Parser parser;
+        private final Supplier<Parser> restart;
+        private final Processor<SyntaxError> errors;
+        private long offset = 0;
+        private int line = 1;
+        private int column = 1;
+        private boolean open = false; // whether a token has been read since the last semicolon
+
+        // Skips the rest of an expression that failed to parse.
+        private final Parser skipper = new Parser() {
+            @Override
+            public Parser lParen(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser rParen(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser semicolon(String s) {
+                return restart.get();
+            }
+
+            @Override
+            public Parser number(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser sumOp(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser prodOp(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser symbol(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser whiteSpace(String s) {
+                return this;
+            }
+        };
+
+        // Syntax errors are thrown.
+        public Lexer(Parser parser) {
+            this.parser = parser;
+            this.restart = null;
+            this.errors = null;
+        }
+
+        // Syntax errors are passed to 'errors', and the lexer skips to the semicolon which ends the failing
+        // expression and carries on with a parser from 'restart'.
+        public Lexer(Supplier<Parser> restart, Processor<SyntaxError> errors) {
+            this.parser = restart.get();
+            this.restart = restart;
+            this.errors = errors;
+        }
+
+        private void recover(SyntaxError e) {
+            SyntaxError error = e.hasPosition() ? e : new SyntaxError(e.token, offset, line, column);
+            if (errors == null) {
+                throw error;
+            }
+            errors.process(error);
+            parser = error.token.equals(SEMICOLON) ? restart.get() : skipper;
+        }
+
+        // An expression without its semicolon at the end of the input is an error, unless it is one being skipped.
+        private void finish() {
+            if (open && parser != skipper) {
+                recover(new SyntaxError(END_OF_INPUT));
+            }
+        }
+
+        private void advance(CharSequence input, int begin, int end) {
+            offset += end - begin;
+            column += end - begin;
+            if (isWhiteSpace(input.charAt(begin))) {
+                for (int i = begin; i < end; i++) {
+                    if (input.charAt(i) == '\n') {
+                        line++;
+                        column = end - i;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int lex(CharSequence input, int start, int end, boolean last) {
+            int i = start;
+            while (i < end) {
+                char c = input.charAt(i);
+                int begin = i++;
+                try {
+                    if (c == '(') {
+                        parser = parser.lParen(L_PAREN);
+                    } else if (c == ')') {
+                        parser = parser.rParen(R_PAREN);
+                    } else if (c == ';') {
+                        parser = parser.semicolon(SEMICOLON);
+                    } else if (c == '+') {
+                        parser = parser.sumOp(SUM);
+                    } else if (c == '*') {
+                        parser = parser.prodOp(PRODUCT);
+                    } else if (c == '-' && i == end && !last) {
+                        return begin; // a sign or not, depending on what follows
+                    } else if (isDigit(c) || c == '-' && i < end && isDigit(input.charAt(i))) {
+                        while (i < end && isDigit(input.charAt(i))) {
+                            i++;
+                        }
+                        if (i == end && !last) {
+                            return begin;
+                        }
+                        parser = parser.number(input.subSequence(begin, i).toString());
+                    } else if (isLetter(c)) {
+                        while (i < end && (isLetter(input.charAt(i)) || isDigit(input.charAt(i)))) {
+                            i++;
+                        }
+                        if (i == end && !last) {
+                            return begin;
+                        }
+                        parser = parser.symbol(input.subSequence(begin, i).toString().intern());
+                    } else if (isWhiteSpace(c)) {
+                        while (i < end && isWhiteSpace(input.charAt(i))) {
+                            i++;
+                        }
+                        if (i == end && !last) {
+                            return begin;
+                        }
+                        parser = parser.whiteSpace(WHITE_SPACE);
+                    } else {
+                        throw new SyntaxError(String.valueOf(c));
+                    }
+                } catch (SyntaxError e) {
+                    recover(e);
+                } catch (ProcessorError e) {
+                    throw e.error;
                 }
+                advance(input, begin, i);
+                open = c != ';' && (open || !isWhiteSpace(c));
+            }
+            if (last) {
+                finish();
             }
+            return i;
         }
     }
 
-    public static interface Processor<T> {
-        void process(T e);
+    // A single pass over the input; only numbers and symbols are copied out of it, and symbols are interned.
+    public static void lex(CharSequence input, Parser parser) {
+        new Lexer(parser).lex(input, 0, input.length(), true);
+    }
+
+    @Override
+    protected Lexer lexer(Processor<Expression> processor, Processor<SyntaxError> errors) {
+        if (errors == null) {
+            return new Lexer(topLevelParser(processor));
+        }
+        return new Lexer(() -> topLevelParser(processor), errors);
     }
 
-    public void parse(CharSequence input, Processor<Expression> processor) {
-        lex(input, sumParser(new Reduction() {
+    private Parser expressionParser(Reduction outer) {
+        return operatorPrecedence ? operatorPrecedenceParser(outer) : sumParser(outer);
+    }
+
+    private Parser topLevelParser(Processor<Expression> processor) {
+        return expressionParser(new Reduction() {
             private Reduction that = this; // don't seem to be able to inline here -- compiler bug?
 
             @Override
@@ -318,11 +583,11 @@ public class Reader {
                 return new DelegatingParser(ERROR) {
                     @Override
                     public Parser semicolon(String s) {
-                        processor.process(e);
-                        return sumParser(that);
+                        process(processor, e);
+                        return expressionParser(that);
                     }
                 };
             }
-        }));
+        });
     }
 }
\ No newline at end of file
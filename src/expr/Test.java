@@ -1,5 +1,6 @@
 package expr;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -23,8 +24,13 @@ public class Test {
     private static final Map<String, Primitive> GLOBALS = getGlobals();
 
     private static void test(String input, String... outputs) {
+        test(false, input, outputs);
+        test(true, input, outputs);
+    }
+
+    private static void test(boolean operatorPrecedence, String input, String... outputs) {
 //        long start = System.currentTimeMillis();
-        new Reader(Expressions.CONSTRUCTOR).parse(input, new Reader.Processor<Expression>() {
+        new Reader(Expressions.CONSTRUCTOR, operatorPrecedence).parse(input, new Reader.Processor<Expression>() {
             private int index = 0;
 
             @Override
@@ -38,6 +44,7 @@ public class Test {
                 System.out.println("Output: " + outString);
                 String output = outputs[index++];
                 assert output.equals(outString);
+                assert output.equals(Decompiler.toExpression(Compiler.eval(Optimizer.optimize(subst))).toString());
             }
         });
     }
@@ -58,5 +65,63 @@ public class Test {
             builder.append("+").append(i);
         }
         test(builder.toString() + ";", "499500");
+        // The operator-precedence parser uses constant Java stack per token, so 100000 terms are no problem; the
+        // result is the same left-associated sum as the combinators build.
+        Interner interner = new Interner();
+        StringBuilder terms = new StringBuilder("0");
+        Expression expected = interner.constant(primitive(0));
+        for (int i = 1; i < 100000; i++) {
+            terms.append(" + ").append(i);
+            Expression sum = interner.application(interner.symbol("+"), expected);
+            expected = interner.application(sum, interner.constant(primitive(i)));
+        }
+        ArrayList<Expression> parsed = new ArrayList<>();
+        new Reader(interner, true).parse(terms.append(";"), parsed::add);
+        assert parsed.size() == 1 && parsed.get(0) == expected;
+        // After a syntax error, recovery skips to the end of the failing expression.
+        ArrayList<Expression> recovered = new ArrayList<>();
+        ArrayList<SyntaxError> errors = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR, true).parse("1 + 2;\n3 + * 4;\n5 * (6 + 7);", recovered::add, errors::add);
+        assert recovered.size() == 2 && errors.size() == 1;
+        assert errors.get(0).token.equals("*") && errors.get(0).line == 2 && errors.get(0).column == 5;
+        // So are a number too big for an int, and an expression without its semicolon at the end of the input.
+        for (boolean operatorPrecedence : new boolean[]{false, true}) {
+            recovered.clear();
+            errors.clear();
+            new Reader(Expressions.CONSTRUCTOR, operatorPrecedence).parse("1 + 99999999999;\n2;\n3 + 4",
+                    recovered::add, errors::add);
+            assert recovered.size() == 1 && errors.size() == 2;
+            assert errors.get(0).token.equals("99999999999") && errors.get(0).column == 5;
+            assert errors.get(1).token.equals("end of input") && errors.get(1).line == 3;
+            try {
+                new Reader(Expressions.CONSTRUCTOR, operatorPrecedence).parse("1 + 2", exp -> {});
+                assert false;
+            } catch (SyntaxError e) {
+                assert e.hasPosition() && e.column == 6;
+            }
+        }
+        // A syntax error thrown by the processor is passed on as it is, rather than recovered from.
+        SyntaxError rejected = new SyntaxError("rejected");
+        errors.clear();
+        try {
+            new Reader(Expressions.CONSTRUCTOR, true).parse("1 + 2;\n3;", exp -> {
+                throw rejected;
+            }, errors::add);
+            assert false;
+        } catch (SyntaxError e) {
+            assert e == rejected && !e.hasPosition() && errors.isEmpty();
+        }
+        // Balanced, a chain that long evaluates in little stack; its constants are folded in parallel.
+        StringBuilder chain = new StringBuilder("0");
+        int total = 0;
+        for (int i = 1; i < 100000; i++) {
+            chain.append(i % 7 == 0 ? " + inc " : " + ").append(i);
+            total += i % 7 == 0 ? i + 1 : i;
+        }
+        int sum = total;
+        new Reader(Expressions.CONSTRUCTOR, true).parse(chain.append(";"), exp -> {
+            Expression balanced = Optimizer.balance(exp, GLOBALS);
+            assert toInt(Compiler.eval(Expressions.substitute(balanced, GLOBALS))) == sum;
+        });
     }
 }
\ No newline at end of file
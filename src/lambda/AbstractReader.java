@@ -0,0 +1,148 @@
+package lambda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * What the lisp and expr readers share: feeding a lexer its input a piece at a time, whether read from a
+ * java.io.Reader or mapped in from a file, and the parse methods built on that. A reader supplies the lexer for its
+ * own syntax, and reports the expressions it reads to a Processor.
+ */
+@SuppressWarnings("UnnecessaryInterfaceModifier, WeakerAccess")
+public abstract class AbstractReader {
+    public static interface Processor<T> {
+        void process(T e);
+    }
+
+    // Lexes input a piece at a time. A token which runs up to the end of a piece other than the last might carry on
+    // into the next one, so it is left unconsumed for the next call.
+    public static interface Lexer {
+        // Answers the index of the first character of input[start, end) that wasn't consumed.
+        int lex(CharSequence input, int start, int end, boolean last);
+    }
+
+    // Answers a lexer which passes each top-level expression to 'processor'. If 'errors' is null, syntax errors are
+    // thrown; otherwise they are passed to 'errors' and the rest of the failing expression is skipped.
+    protected abstract Lexer lexer(Processor<Expression> processor, Processor<SyntaxError> errors);
+
+    // Carries a SyntaxError thrown by a Processor out through a lexer, which would otherwise take it for an error
+    // in its input. The lexer rethrows 'error'.
+    protected static final class ProcessorError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final SyntaxError error;
+
+        private ProcessorError(SyntaxError error) {
+            super(error);
+            this.error = error;
+        }
+    }
+
+    protected static void process(Processor<Expression> processor, Expression e) {
+        try {
+            processor.process(e);
+        } catch (SyntaxError error) {
+            throw new ProcessorError(error);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Lexes input as it is read. Only the unconsumed tail of the buffer is kept from one read to the next, so the
+    // buffer only grows to hold a token longer than itself.
+    public static void lex(java.io.Reader input, Lexer lexer) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        int start = 0;
+        int end = 0;
+        while (true) {
+            if (end == buffer.length) {
+                if (start == 0) {
+                    buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                } else {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+            }
+            int n = input.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                lexer.lex(CharBuffer.wrap(buffer), start, end, true);
+                return;
+            }
+            end += n;
+            start = lexer.lex(CharBuffer.wrap(buffer), start, end, false);
+        }
+    }
+
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    // Lexes a file in place, through windows mapped into memory in turn; a token cut by the end of one window is
+    // lexed from the start of the next. Mapped windows are released when they are collected.
+    protected static void lex(Path path, Lexer lexer, long windowSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            do {
+                int length = (int) Math.min(windowSize, size - position);
+                boolean last = position + length == size;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int consumed = lexer.lex(new ByteCharSequence(window), 0, length, last);
+                if (consumed == 0 && !last) {
+                    throw new RuntimeException("Token longer than " + windowSize + " bytes at offset " + position);
+                }
+                position += consumed;
+            } while (position < size);
+        }
+    }
+
+    public static void lex(Path path, Lexer lexer) throws IOException {
+        lex(path, lexer, WINDOW_SIZE);
+    }
+
+    public void parse(CharSequence input, Processor<Expression> processor) {
+        lexer(processor, null).lex(input, 0, input.length(), true);
+    }
+
+    // Each top-level expression is processed as soon as it is complete, so only the one being read is held.
+    public void parse(java.io.Reader input, Processor<Expression> processor) throws IOException {
+        lex(input, lexer(processor, null));
+    }
+
+    // The file is read in place rather than decoded into a String; it must be ASCII.
+    public void parse(Path path, Processor<Expression> processor) throws IOException {
+        lex(path, lexer(processor, null));
+    }
+
+    // These carry on after a syntax error: it is passed to 'errors' and the rest of the failing expression is
+    // skipped.
+    public void parse(CharSequence input, Processor<Expression> processor, Processor<SyntaxError> errors) {
+        lexer(processor, errors).lex(input, 0, input.length(), true);
+    }
+
+    public void parse(java.io.Reader input, Processor<Expression> processor, Processor<SyntaxError> errors)
+            throws IOException {
+        lex(input, lexer(processor, errors));
+    }
+
+    public void parse(Path path, Processor<Expression> processor, Processor<SyntaxError> errors) throws IOException {
+        lex(path, lexer(processor, errors));
+    }
+
+    public void parse(InputStream input, Processor<Expression> processor) throws IOException {
+        parse(new InputStreamReader(input, StandardCharsets.UTF_8), processor);
+    }
+
+    public void parse(ReadableByteChannel input, Processor<Expression> processor) throws IOException {
+        parse(Channels.newReader(input, StandardCharsets.UTF_8), processor);
+    }
+}
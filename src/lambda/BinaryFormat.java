@@ -0,0 +1,249 @@
+package lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * A compact binary encoding of expressions, which reads back much faster than source text can be parsed.
+ * <p>
+ * An encoding starts with a magic number and holds any number of expressions, each a tree of nodes in prefix
+ * order. A node is a varint whose low three bits are a tag and whose other bits are an operand:
+ * <pre>
+ *   NAME        the length of a name, followed by its UTF-8 bytes; defines the next entry of the name table
+ *   INTEGER     the zigzag-encoded value
+ *   STRING      a name table index
+ *   FREE        a name table index
+ *   BOUND       a de Bruijn index: the number of lambdas between the variable and its binder
+ *   LAMBDA      a name table index for the bound variable, followed by the body
+ *   APPLICATION no operand, followed by the function and the argument
+ * </pre>
+ * Names are defined just before their first use and shared by all the expressions that follow. Binder names are
+ * kept, so expressions read back with the names they were written with. Function constants have no encoding.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BinaryFormat {
+    private static final int MAGIC = 0x4C424631; // "LBF1"
+
+    private static final int NAME = 0;
+    private static final int INTEGER = 1;
+    private static final int STRING = 2;
+    private static final int FREE = 3;
+    private static final int BOUND = 4;
+    private static final int LAMBDA = 5;
+    private static final int APPLICATION = 6;
+
+    private static final int TAG_BITS = 3;
+    private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+
+    // Encodes expressions, one after another, into a byte array.
+    public static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final HashMap<String, Integer> names = new HashMap<>();
+
+        public Writer() {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write(MAGIC >>> shift);
+            }
+        }
+
+        private Void node(int tag, long operand) {
+            long n = operand << TAG_BITS | tag;
+            while ((n & ~0x7FL) != 0) {
+                out.write((int) (n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            out.write((int) n);
+            return null;
+        }
+
+        private int name(String name) {
+            Integer index = names.get(name);
+            if (index == null) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                node(NAME, bytes.length);
+                out.write(bytes, 0, bytes.length);
+                index = names.size();
+                names.put(name, index);
+            }
+            return index;
+        }
+
+        private final Primitive.Visitor<Void> constantEncoder = new Primitive.Visitor<Void>() {
+            @Override
+            public Void integer(int i) {
+                return node(INTEGER, ((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+            }
+
+            @Override
+            public Void string(String s) {
+                return node(STRING, name(s));
+            }
+
+            @Override
+            public Void function(PrimitiveFunction f) {
+                throw new RuntimeException("Can't encode a function constant: " + f);
+            }
+        };
+
+        // A node still to be encoded, with the binder names in scope at it, innermost first.
+        private static final class Frame {
+            private final Expression e;
+            private final List<String> scope;
+
+            private Frame(Expression e, List<String> scope) {
+                this.e = e;
+                this.scope = scope;
+            }
+        }
+
+        private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+        private List<String> scope; // of the node being encoded
+
+        // Encodes a node and pushes its children, the function above the argument, so nodes come out in prefix order.
+        private final Expression.Visitor<Void> encoder = new Expression.Visitor<Void>() {
+            @Override
+            public Void constant(Primitive value) {
+                return value.accept(constantEncoder);
+            }
+
+            @Override
+            public Void symbol(String name) {
+                int index = scope == null ? -1 : scope.indexOf(name);
+                return index >= 0 ? node(BOUND, index) : node(FREE, name(name));
+            }
+
+            @Override
+            public Void lambda(String var, Expression exp) {
+                node(LAMBDA, name(var));
+                stack.push(new Frame(exp, List.create(scope, var)));
+                return null;
+            }
+
+            @Override
+            public Void application(Expression fun, Expression arg) {
+                node(APPLICATION, 0);
+                stack.push(new Frame(arg, scope));
+                stack.push(new Frame(fun, scope));
+                return null;
+            }
+        };
+
+        // An explicit stack is used rather than recursion, so any depth of nesting can be written.
+        public Writer write(Expression e) {
+            stack.push(new Frame(e, null));
+            while (!stack.isEmpty()) {
+                Frame frame = stack.pop();
+                scope = frame.scope;
+                frame.e.accept(encoder);
+            }
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    private static long varint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    // A lambda or an application whose children are still being read.
+    private static final class Pending {
+        private final String var; // null for an application
+        private Expression fun;
+
+        private Pending(String var) {
+            this.var = var;
+        }
+    }
+
+    // Reads the expressions encoded in the buffer's remaining bytes, building them with the constructor and passing
+    // each to the consumer as it is completed. The bytes are read in place, and an explicit stack is used rather
+    // than recursion, so any depth of nesting can be read.
+    public static void read(ByteBuffer in, Expression.Visitor<Expression> constructor, Consumer<Expression> consumer) {
+        if (in.remaining() < 4 || in.getInt() != MAGIC) {
+            throw new RuntimeException("Not an encoding of expressions");
+        }
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> scope = new ArrayList<>(); // binder names, innermost last
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        while (in.hasRemaining()) {
+            long n = varint(in);
+            int operand = (int) (n >>> TAG_BITS);
+            Expression e;
+            switch ((int) n & TAG_MASK) {
+                case NAME:
+                    byte[] bytes = new byte[operand];
+                    in.get(bytes);
+                    names.add(new String(bytes, StandardCharsets.UTF_8).intern());
+                    continue;
+                case INTEGER:
+                    e = constructor.constant(Primitives.CONSTRUCTOR.integer((operand >>> 1) ^ -(operand & 1)));
+                    break;
+                case STRING:
+                    e = constructor.constant(Primitives.CONSTRUCTOR.string(names.get(operand)));
+                    break;
+                case FREE:
+                    e = constructor.symbol(names.get(operand));
+                    break;
+                case BOUND:
+                    e = constructor.symbol(scope.get(scope.size() - 1 - operand));
+                    break;
+                case LAMBDA:
+                    String var = names.get(operand);
+                    scope.add(var);
+                    pending.push(new Pending(var));
+                    continue;
+                case APPLICATION:
+                    pending.push(new Pending(null));
+                    continue;
+                default:
+                    throw new RuntimeException("Bad tag: " + (n & TAG_MASK));
+            }
+            // e is complete: build as many of the enclosing nodes as are now complete too.
+            while (true) {
+                Pending p = pending.peek();
+                if (p == null) {
+                    consumer.accept(e);
+                    break;
+                }
+                if (p.var != null) {
+                    scope.remove(scope.size() - 1);
+                    e = constructor.lambda(p.var, e);
+                } else if (p.fun == null) {
+                    p.fun = e;
+                    break;
+                } else {
+                    e = constructor.application(p.fun, e);
+                }
+                pending.pop();
+            }
+        }
+        if (!pending.isEmpty()) {
+            throw new RuntimeException("Truncated encoding of expressions");
+        }
+    }
+
+    public static byte[] encode(Expression e) {
+        return new Writer().write(e).toByteArray();
+    }
+
+    public static Expression decode(byte[] bytes, Expression.Visitor<Expression> constructor) {
+        ArrayList<Expression> result = new ArrayList<>();
+        read(ByteBuffer.wrap(bytes), constructor, result::add);
+        return result.get(0);
+    }
+}
@@ -0,0 +1,149 @@
+package lambda;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Limits on the work an evaluation may do -- the number of steps (function applications) it takes, an estimate of
+ * the bytes it allocates for closures, and the time it runs for -- and a way to cancel it from another thread.
+ * <p>
+ * A budget applies to the thread that runs a task with it. Each of the evaluators -- Evaluator, LazyEvaluator,
+ * Machine, Compiler and BytecodeCompiler -- meters the code it runs when asked (eval(Expression, true)): it looks up
+ * the current thread's budget once, when evaluation starts, and charges its applications and closures to it; with
+ * no budget, or unmetered, it does no checks at all. When a limit is passed the evaluation stops with Exceeded,
+ * which carries the work done so far. The deadline and cancellation are checked every CHECK_INTERVAL steps, so a
+ * step costs an increment and a compare.
+ * <p>
+ * Code which outlives the evaluation that compiled it, such as an Engine's globals, is compiled against CALLER
+ * instead, which passes each charge on to the budget of the thread running the code at the time, at the cost of a
+ * lookup per charge.
+ * <p>
+ * The counts are only updated by the running thread; cancel may be called from any thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Budget {
+    private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<>();
+    private static final int CHECK_INTERVAL = 1 << 10;
+
+    // Estimates, for a 64-bit JVM: a closure object, its wrapper and its record, and a reference in the record.
+    private static final int CLOSURE_BYTES = 64;
+    private static final int REFERENCE_BYTES = 8;
+
+    public static enum Limit {
+        STEPS, ALLOCATION, DEADLINE
+    }
+
+    public static class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final Limit limit;
+        public final long steps;
+        public final long bytes;
+        public final long nanos;
+
+        public Exceeded(Limit limit, long steps, long bytes, long nanos) {
+            super("Budget exceeded (" + limit + ") after " + steps + " steps, ~" + bytes + " bytes, " +
+                    nanos / 1_000_000 + "ms");
+            this.limit = limit;
+            this.steps = steps;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    // Charges the current thread's budget, if it has one.
+    public static final Budget CALLER = new Budget(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, true);
+
+    private final long maxSteps;
+    private final long maxBytes;
+    private final long timeoutNanos;
+    private final boolean caller;
+    private long start;
+    private long steps;
+    private long bytes;
+    private volatile boolean cancelled;
+
+    private Budget(long maxSteps, long maxBytes, long timeoutNanos, boolean caller) {
+        this.maxSteps = maxSteps;
+        this.maxBytes = maxBytes;
+        this.timeoutNanos = timeoutNanos;
+        this.caller = caller;
+    }
+
+    public Budget(long maxSteps, long maxBytes, long timeoutNanos) {
+        this(maxSteps, maxBytes, timeoutNanos, false);
+    }
+
+    public Budget(long maxSteps) {
+        this(maxSteps, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    // The task stops, with a CancellationException, at its next check.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Runs the task with this budget; the time limit counts from now.
+    public <T> T run(Supplier<T> task) {
+        Budget outer = CURRENT.get();
+        CURRENT.set(this);
+        start = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            CURRENT.set(outer);
+        }
+    }
+
+    private Exceeded exceeded(Limit limit) {
+        return new Exceeded(limit, steps, bytes, System.nanoTime() - start);
+    }
+
+    public void charge() {
+        if (caller) {
+            Budget budget = CURRENT.get();
+            if (budget != null) {
+                budget.charge();
+            }
+            return;
+        }
+        if (++steps > maxSteps) {
+            throw exceeded(Limit.STEPS);
+        }
+        if ((steps & (CHECK_INTERVAL - 1)) == 0) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (timeoutNanos != Long.MAX_VALUE && System.nanoTime() - start > timeoutNanos) {
+                throw exceeded(Limit.DEADLINE);
+            }
+        }
+    }
+
+    public void chargeClosure(int captured) {
+        if (caller) {
+            Budget budget = CURRENT.get();
+            if (budget != null) {
+                budget.chargeClosure(captured);
+            }
+            return;
+        }
+        bytes += CLOSURE_BYTES + REFERENCE_BYTES * captured;
+        if (bytes > maxBytes) {
+            throw exceeded(Limit.ALLOCATION);
+        }
+    }
+
+    // The current thread's budget, or null.
+    public static Budget current() {
+        return CURRENT.get();
+    }
+}
@@ -0,0 +1,56 @@
+package lambda;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A CharSequence view of a ByteBuffer, one char per byte, so that ASCII source can be lexed in place -- from a
+ * mapped file, say -- without first being decoded into a String. Bytes outside ASCII read as the Latin-1 chars of
+ * the same value; the readers reject them either way. Only the parts of the input that are cut out (subSequence
+ * followed by toString) are copied.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ByteCharSequence implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private ByteCharSequence(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    // A view of the bytes between the buffer's position and its limit; the buffer itself isn't changed.
+    public ByteCharSequence(ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.remaining());
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+        }
+        return (char) (bytes.get(offset + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+        }
+        return new ByteCharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] result = new byte[length];
+        bytes.get(offset, result);
+        return new String(result, StandardCharsets.ISO_8859_1);
+    }
+}
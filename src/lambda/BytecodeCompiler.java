@@ -0,0 +1,515 @@
+package lambda;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A compiler that emits a JVM class for every lambda in an expression. The classes are defined as hidden classes
+ * so they can be unloaded along with the code that refers to them.
+ * <p>
+ * Closures are flat: when a lambda is created its free variables are copied into a Primitive[] which the body
+ * then reads by index, and the argument is held in a local. Saturated applications of SUM, PRD and INC are
+ * emitted as integer arithmetic rather than as calls through PrimitiveFunction.
+ * <p>
+ * Any other application calls a small static method of its own, which enters the body of a compiled closure
+ * directly and calls anything else through PrimitiveFunction. As each call site has its own copy of that branch, it
+ * has its own type profile too, so the JIT can inline the bodies that site actually calls. The helpers are the only
+ * code with a branch; the eval methods are straight-line code, so need no StackMapTable.
+ */
+@SuppressWarnings("UnnecessaryInterfaceModifier, WeakerAccess")
+public class BytecodeCompiler {
+    private static final Primitive[] EMPTY = new Primitive[0];
+
+    public static abstract class Code {
+        protected final Code[] codes;
+        protected final Primitive[] constants;
+        protected final Budget budget; // charged by metered code
+
+        protected Code(Code[] codes, Primitive[] constants, Budget budget) {
+            this.codes = codes;
+            this.constants = constants;
+            this.budget = budget;
+        }
+
+        public abstract Primitive eval(Primitive[] closure, Primitive arg);
+    }
+
+    // A closure is its own Primitive, which saves a wrapper per lambda and a visit per application.
+    private static final class Closure extends Primitive implements PrimitiveFunction {
+        private final Code code;
+        private final Primitive[] closure;
+
+        private Closure(Code code, Primitive[] closure) {
+            this.code = code;
+            this.closure = closure;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.function(this);
+        }
+
+        @Override
+        public Primitive apply(Primitive arg) {
+            if (Metrics.ENABLED) {
+                Metrics.ENTRIES.increment();
+            }
+            return code.eval(closure, arg);
+        }
+    }
+
+    // Called from generated code.
+    public static Primitive close(Code code, Primitive[] closure) {
+        return new Closure(code, closure);
+    }
+
+    // Called from generated code, for a lambda with no free variables.
+    public static Primitive close(Code code) {
+        return new Closure(code, EMPTY);
+    }
+
+    // Class file constants
+
+    private static final String NAME = "lambda/BytecodeCompiler$Lambda";
+    private static final String CODE = "lambda/BytecodeCompiler$Code";
+    private static final String SELF = "lambda/BytecodeCompiler";
+    private static final String CLOSURE = "lambda/BytecodeCompiler$Closure";
+    private static final String PRIMITIVE = "lambda/Primitive";
+    private static final String PRIMITIVES = "lambda/Primitives";
+    private static final String BUDGET = "lambda/Budget";
+    private static final String METRICS = "lambda/Metrics";
+    private static final String FUNCTION = "lambda/PrimitiveFunction";
+    private static final String CONSTRUCTOR_TYPE = "([L" + CODE + ";[L" + PRIMITIVE + ";L" + BUDGET + ";)V";
+    private static final String EVAL_TYPE = "([L" + PRIMITIVE + ";L" + PRIMITIVE + ";)L" + PRIMITIVE + ";";
+    private static final String APPLY_TYPE = "(L" + PRIMITIVE + ";L" + PRIMITIVE + ";)L" + PRIMITIVE + ";";
+
+    private static final int VERSION = 61;
+    private static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020;
+    private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_CLASS = 7, CONSTANT_FIELDREF = 9,
+            CONSTANT_METHODREF = 10, CONSTANT_INTERFACE_METHODREF = 11, CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, ALOAD_3 = 0x2d, AALOAD = 0x32, AASTORE = 0x53,
+            DUP = 0x59, SWAP = 0x5f, IADD = 0x60, IMUL = 0x68, IFEQ = 0x99, ARETURN = 0xb0, RETURN = 0xb1,
+            GETFIELD = 0xb4, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9,
+            ANEWARRAY = 0xbd, CHECKCAST = 0xc0, INSTANCEOF = 0xc1;
+
+    private static class Bytes extends ByteArrayOutputStream {
+        public Bytes u1(int b) {
+            write(b);
+            return this;
+        }
+
+        public Bytes u2(int s) {
+            write(s >>> 8);
+            write(s);
+            return this;
+        }
+
+        public Bytes u4(int i) {
+            u2(i >>> 16);
+            return u2(i);
+        }
+
+        public Bytes bytes(Bytes that) {
+            write(that.buf, 0, that.count);
+            return this;
+        }
+
+        // Overwrites the u2 at 'offset', for a branch written before its target was known.
+        public void patch(int offset, int s) {
+            buf[offset] = (byte) (s >>> 8);
+            buf[offset + 1] = (byte) s;
+        }
+    }
+
+    private static class ConstantPool {
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final Bytes bytes = new Bytes();
+        private int size = 1;
+
+        // Entries must be complete before they are written, so callers resolve any operands first.
+        private int add(String key, Consumer<Bytes> entry) {
+            Integer index = indices.get(key);
+            if (index == null) {
+                entry.accept(bytes);
+                index = size++;
+                indices.put(key, index);
+            }
+            return index;
+        }
+
+        public int utf8(String s) {
+            byte[] data = s.getBytes(StandardCharsets.UTF_8);
+            return add("U" + s, b -> b.u1(CONSTANT_UTF8).u2(data.length).write(data, 0, data.length));
+        }
+
+        public int integer(int i) {
+            return add("I" + i, b -> b.u1(CONSTANT_INTEGER).u4(i));
+        }
+
+        public int classRef(String name) {
+            int n = utf8(name);
+            return add("C" + name, b -> b.u1(CONSTANT_CLASS).u2(n));
+        }
+
+        public int member(int tag, String owner, String name, String type) {
+            int c = classRef(owner);
+            int n = utf8(name);
+            int t = utf8(type);
+            int nt = add("N" + name + " " + type, b -> b.u1(CONSTANT_NAME_AND_TYPE).u2(n).u2(t));
+            return add(tag + owner + "." + name + type, b -> b.u1(tag).u2(c).u2(nt));
+        }
+    }
+
+    private static final Expression.Visitor<Primitive> CONSTANT = new Expression.Visitor<Primitive>() {
+        @Override
+        public Primitive constant(Primitive c) {
+            return c;
+        }
+
+        @Override
+        public Primitive symbol(String name) {
+            return null;
+        }
+
+        @Override
+        public Primitive lambda(String var, Expression exp) {
+            return null;
+        }
+
+        @Override
+        public Primitive application(Expression fun, Expression arg) {
+            return null;
+        }
+    };
+
+    private static final Primitive.Visitor<Integer> INTEGER = new Primitive.Visitor<Integer>() {
+        @Override
+        public Integer integer(int i) {
+            return i;
+        }
+
+        @Override
+        public Integer string(String s) {
+            return null;
+        }
+
+        @Override
+        public Integer function(PrimitiveFunction f) {
+            return null;
+        }
+    };
+
+    // Matches (operator e) and answers e.
+    private static Expression.Visitor<Expression> operandOf(Primitive operator) {
+        return new Expression.Visitor<Expression>() {
+            @Override
+            public Expression constant(Primitive c) {
+                return null;
+            }
+
+            @Override
+            public Expression symbol(String name) {
+                return null;
+            }
+
+            @Override
+            public Expression lambda(String var, Expression exp) {
+                return null;
+            }
+
+            @Override
+            public Expression application(Expression fun, Expression arg) {
+                return fun.accept(CONSTANT) == operator ? arg : null;
+            }
+        };
+    }
+
+    private static final Expression.Visitor<Expression> SUM_OPERAND = operandOf(Primitives.SUM);
+    private static final Expression.Visitor<Expression> PRD_OPERAND = operandOf(Primitives.PRD);
+
+    // Emits the body of one lambda. Locals are: 0 this, 1 the closure record, 2 the argument.
+    private static class Emitter extends Expression.Visitor<Void> {
+        private final String var;
+        private final List<String> captured;
+        private final Budget budget; // null if not metered
+        private final Map<Expression, Set<String>> bodies; // the free variables of lambda bodies, found at the top
+        private final ConstantPool pool = new ConstantPool();
+        private final Bytes code = new Bytes();
+        private final List<Code> codes = new ArrayList<>();
+        private final List<Primitive> constants = new ArrayList<>();
+        private int depth = 0;
+        private int maxDepth = 0;
+        private int sites = 0; // applications through a helper
+
+        private Emitter(String var, List<String> captured, Budget budget, Map<Expression, Set<String>> bodies) {
+            this.var = var;
+            this.captured = captured;
+            this.budget = budget;
+            this.bodies = bodies;
+        }
+
+        private void op(int opcode, int delta) {
+            code.u1(opcode);
+            depth += delta;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void push(int i) {
+            if (-1 <= i && i <= 5) {
+                op(ICONST_0 + i, 1);
+            } else if (Byte.MIN_VALUE <= i && i <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                code.u1(i);
+            } else if (Short.MIN_VALUE <= i && i <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                code.u2(i);
+            } else {
+                op(LDC_W, 1);
+                code.u2(pool.integer(i));
+            }
+        }
+
+        private void getField(String name, String type) {
+            op(ALOAD_0, 1);
+            op(GETFIELD, 0);
+            code.u2(pool.member(CONSTANT_FIELDREF, CODE, name, type));
+        }
+
+        private void invokeVirtual(String owner, String name, String type, int delta) {
+            op(INVOKEVIRTUAL, delta);
+            code.u2(pool.member(CONSTANT_METHODREF, owner, name, type));
+        }
+
+        private void invokeStatic(String owner, String name, String type, int delta) {
+            op(INVOKESTATIC, delta);
+            code.u2(pool.member(CONSTANT_METHODREF, owner, name, type));
+        }
+
+        private void emitInt(Expression e) {
+            Primitive c = e.accept(CONSTANT);
+            Integer i = c == null ? null : c.accept(INTEGER);
+            if (i != null) {
+                push(i);
+            } else {
+                e.accept(this);
+                invokeStatic(PRIMITIVES, "toInt", "(L" + PRIMITIVE + ";)I", 0);
+            }
+        }
+
+        private void box() {
+            invokeStatic(PRIMITIVES, "primitive", "(I)L" + PRIMITIVE + ";", 0);
+        }
+
+        @Override
+        public Void constant(Primitive c) {
+            int index = constants.indexOf(c);
+            if (index < 0) {
+                index = constants.size();
+                constants.add(c);
+            }
+            getField("constants", "[L" + PRIMITIVE + ";");
+            push(index);
+            op(AALOAD, -1);
+            return null;
+        }
+
+        @Override
+        public Void symbol(String name) {
+            if (name.equals(var)) {
+                op(ALOAD_2, 1);
+                return null;
+            }
+            int index = captured.indexOf(name);
+            if (index < 0) {
+                throw new RuntimeException("Undefined variable: " + name);
+            }
+            op(ALOAD_1, 1);
+            push(index);
+            op(AALOAD, -1);
+            return null;
+        }
+
+        @Override
+        public Void lambda(String var, Expression exp) {
+            List<String> free = new ArrayList<>(bodies.get(exp));
+            free.remove(var);
+            codes.add(new Emitter(var, free, budget, bodies).compile(exp));
+            if (budget != null) {
+                getField("budget", "L" + BUDGET + ";");
+                push(free.size());
+                invokeVirtual(BUDGET, "chargeClosure", "(I)V", -2);
+            }
+            if (Metrics.ENABLED) {
+                invokeStatic(METRICS, "closure", "()V", 0);
+            }
+            getField("codes", "[L" + CODE + ";");
+            push(codes.size() - 1);
+            op(AALOAD, -1);
+            if (free.isEmpty()) {
+                invokeStatic(SELF, "close", "(L" + CODE + ";)L" + PRIMITIVE + ";", 0);
+                return null;
+            }
+            push(free.size());
+            op(ANEWARRAY, 0);
+            code.u2(pool.classRef(PRIMITIVE));
+            for (int i = 0; i < free.size(); i++) {
+                op(DUP, 1);
+                push(i);
+                symbol(free.get(i));
+                op(AASTORE, -3);
+            }
+            invokeStatic(SELF, "close", "(L" + CODE + ";[L" + PRIMITIVE + ";)L" + PRIMITIVE + ";", -1);
+            return null;
+        }
+
+        @Override
+        public Void application(Expression fun, Expression arg) {
+            Expression left;
+            if ((left = fun.accept(SUM_OPERAND)) != null) {
+                emitInt(left);
+                emitInt(arg);
+                op(IADD, -1);
+                box();
+            } else if ((left = fun.accept(PRD_OPERAND)) != null) {
+                emitInt(left);
+                emitInt(arg);
+                op(IMUL, -1);
+                box();
+            } else if (fun.accept(CONSTANT) == Primitives.INC) {
+                emitInt(arg);
+                push(1);
+                op(IADD, -1);
+                box();
+            } else {
+                if (budget != null) {
+                    getField("budget", "L" + BUDGET + ";");
+                    invokeVirtual(BUDGET, "charge", "()V", -1);
+                }
+                if (Metrics.ENABLED) {
+                    invokeStatic(METRICS, "application", "()V", 0);
+                }
+                fun.accept(this);
+                arg.accept(this);
+                invokeStatic(NAME, "apply" + sites++, APPLY_TYPE, -1);
+            }
+            return null;
+        }
+
+        // 'attributes' are those of the Code attribute, the first two bytes being their count.
+        private static void method(Bytes out, int access, int name, int type, int codeAttribute, int maxStack,
+                                   int maxLocals, Bytes body, Bytes attributes) {
+            out.u2(access).u2(name).u2(type).u2(1);
+            out.u2(codeAttribute).u4(10 + body.size() + attributes.size()).u2(maxStack).u2(maxLocals)
+                    .u4(body.size()).bytes(body).u2(0).bytes(attributes);
+        }
+
+        // Writes the body of the helper each call site has, apply(fun, arg), and answers the offset of its branch
+        // target.
+        private int applyHelper(Bytes body) {
+            body.u1(ALOAD_0).u1(INSTANCEOF).u2(pool.classRef(CLOSURE)).u1(IFEQ);
+            int branch = body.size() - 1;
+            body.u2(0);
+            if (Metrics.ENABLED) {
+                body.u1(INVOKESTATIC).u2(pool.member(CONSTANT_METHODREF, METRICS, "entry", "()V"));
+            }
+            body.u1(ALOAD_0).u1(CHECKCAST).u2(pool.classRef(CLOSURE)).u1(DUP)
+                    .u1(GETFIELD).u2(pool.member(CONSTANT_FIELDREF, CLOSURE, "code", "L" + CODE + ";")).u1(SWAP)
+                    .u1(GETFIELD).u2(pool.member(CONSTANT_FIELDREF, CLOSURE, "closure", "[L" + PRIMITIVE + ";"))
+                    .u1(ALOAD_1).u1(INVOKEVIRTUAL).u2(pool.member(CONSTANT_METHODREF, CODE, "eval", EVAL_TYPE))
+                    .u1(ARETURN);
+            int other = body.size();
+            body.u1(ALOAD_0).u1(INVOKESTATIC)
+                    .u2(pool.member(CONSTANT_METHODREF, PRIMITIVES, "toFunction", "(L" + PRIMITIVE + ";)L" +
+                            FUNCTION + ";"))
+                    .u1(ALOAD_1).u1(INVOKEINTERFACE)
+                    .u2(pool.member(CONSTANT_INTERFACE_METHODREF, FUNCTION, "apply", "(L" + PRIMITIVE + ";)L" +
+                            PRIMITIVE + ";")).u1(2).u1(0)
+                    .u1(ARETURN);
+            body.patch(branch + 1, other - branch);
+            return other;
+        }
+
+        private byte[] toClassFile() {
+            int thisClass = pool.classRef(NAME);
+            int superClass = pool.classRef(CODE);
+            int superInit = pool.member(CONSTANT_METHODREF, CODE, "<init>", CONSTRUCTOR_TYPE);
+            int init = pool.utf8("<init>");
+            int initType = pool.utf8(CONSTRUCTOR_TYPE);
+            int eval = pool.utf8("eval");
+            int evalType = pool.utf8(EVAL_TYPE);
+            int codeAttribute = pool.utf8("Code");
+            Bytes apply = new Bytes();
+            Bytes applyAttributes = new Bytes().u2(0);
+            if (sites > 0) {
+                // The branch target has the locals the helper was called with and an empty stack: a same_frame.
+                int target = applyHelper(apply);
+                applyAttributes = new Bytes().u2(1).u2(pool.utf8("StackMapTable")).u4(3).u2(1).u1(target);
+            }
+            int applyType = pool.utf8(APPLY_TYPE);
+            int[] applyNames = new int[sites];
+            for (int i = 0; i < sites; i++) {
+                applyNames[i] = pool.utf8("apply" + i);
+            }
+            if (code.size() > 0xffff || pool.size > 0xffff) {
+                throw new RuntimeException("Expression too large to compile");
+            }
+            Bytes none = new Bytes().u2(0);
+            Bytes constructor = new Bytes().u1(ALOAD_0).u1(ALOAD_1).u1(ALOAD_2).u1(ALOAD_3).u1(INVOKESPECIAL)
+                    .u2(superInit).u1(RETURN);
+            Bytes out = new Bytes().u4(0xCAFEBABE).u2(0).u2(VERSION).u2(pool.size).bytes(pool.bytes);
+            out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER).u2(thisClass).u2(superClass).u2(0).u2(0).u2(2 + sites);
+            method(out, ACC_PUBLIC, init, initType, codeAttribute, 4, 4, constructor, none);
+            method(out, ACC_PUBLIC, eval, evalType, codeAttribute, maxDepth, 3, code, none);
+            for (int applyName : applyNames) {
+                method(out, ACC_PRIVATE | ACC_STATIC, applyName, applyType, codeAttribute, 3, 2, apply,
+                        applyAttributes);
+            }
+            out.u2(0);
+            return out.toByteArray();
+        }
+
+        public Code compile(Expression body) {
+            body.accept(this);
+            op(ARETURN, -1);
+            try {
+                // As a nestmate, the class can read the private fields of Closure.
+                Class<?> c = MethodHandles.lookup().defineHiddenClass(toClassFile(), true,
+                        MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+                return (Code) c.getConstructor(Code[].class, Primitive[].class, Budget.class).newInstance(
+                        codes.toArray(new Code[codes.size()]), constants.toArray(new Primitive[constants.size()]),
+                        budget);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // Metered code charges each application through PrimitiveFunction, and each closure, to the Budget that the
+    // compiling thread has, if any -- looked up once, here.
+    public static Code compile(Expression input, boolean metered) {
+        return new Emitter(null, new ArrayList<>(), metered ? Budget.current() : null,
+                Expressions.freeVariablesOfBodies(input)).compile(input);
+    }
+
+    public static Code compile(Expression input) {
+        return compile(input, false);
+    }
+
+    public static Primitive eval(Expression input) {
+        return compile(input).eval(EMPTY, null);
+    }
+
+    public static Primitive eval(Expression input, boolean metered) {
+        return compile(input, metered).eval(EMPTY, null);
+    }
+}
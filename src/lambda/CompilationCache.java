@@ -0,0 +1,160 @@
+package lambda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of compiled code, keyed by the structure of the expression up to the names
+ * of its bound variables. Free variables are not substituted into the code but read from the globals supplied to
+ * each evaluation, so one entry serves every set of globals.
+ * <p>
+ * Keys are interned; expressions built with constructor() are already canonical and are looked up in constant
+ * time, anything else is interned first. The interner is replaced once it holds many more nodes than the live
+ * keys need, so evicted expressions don't accumulate. The constructor always builds with the current interner, so
+ * readers given it before a replacement don't keep the old one alive.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CompilationCache {
+    private static final int INTERNER_SLACK = 16;
+
+    private static class Entry {
+        private final List<String> globals;
+        private final Compiler.Implementation code;
+
+        private Entry(List<String> globals, Compiler.Implementation code) {
+            this.globals = globals;
+            this.code = code;
+        }
+
+        public Primitive eval(Map<String, Primitive> env) {
+            Primitive[] values = new Primitive[globals.size()];
+            for (int i = 0; i < values.length; i++) {
+                String name = globals.get(i);
+                values[i] = env.get(name);
+                if (values[i] == null) {
+                    throw new RuntimeException("Undefined variable: " + name);
+                }
+            }
+            return code.eval(values, null);
+        }
+    }
+
+    private final int capacity;
+    private volatile int maxNodes; // in the interner, before it is replaced
+    private final LinkedHashMap<Expression, Entry> entries;
+    private volatile Interner interner = new Interner();
+    private final Expression.Visitor<Expression> constructor = new Expression.Visitor<Expression>() {
+        @Override
+        public Expression constant(Primitive c) {
+            return interner.constant(c);
+        }
+
+        @Override
+        public Expression symbol(String name) {
+            return interner.symbol(name);
+        }
+
+        @Override
+        public Expression lambda(String var, Expression exp) {
+            return interner.lambda(var, exp);
+        }
+
+        @Override
+        public Expression application(Expression fun, Expression arg) {
+            return interner.application(fun, arg);
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CompilationCache(int capacity) {
+        this.capacity = capacity;
+        this.maxNodes = INTERNER_SLACK * Math.max(capacity, 1);
+        this.entries = new LinkedHashMap<Expression, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Expression, Entry> eldest) {
+                if (size() > CompilationCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Expressions built with this constructor don't need to be interned again on lookup.
+    public Expression.Visitor<Expression> constructor() {
+        return constructor;
+    }
+
+
+    private synchronized Entry get(Expression key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(Expression key, Entry entry) {
+        entries.put(interner.intern(key), entry); // a no-op unless the interner was replaced while compiling
+        trim();
+    }
+
+    // Replaces the interner if expressions that are no longer keys have filled it.
+    private synchronized void trim() {
+        if (interner.size() > maxNodes) {
+            Interner fresh = new Interner();
+            Map<Expression, Entry> live = new LinkedHashMap<>(entries);
+            entries.clear();
+            for (Map.Entry<Expression, Entry> e : live.entrySet()) {
+                entries.put(fresh.intern(e.getKey()), e.getValue());
+            }
+            interner = fresh;
+            maxNodes = Math.max(INTERNER_SLACK * Math.max(capacity, 1), 2 * fresh.size()); // keys may be large
+        }
+    }
+
+    public Primitive eval(Expression input, Map<String, Primitive> globals) {
+        Expression key = interner.intern(input);
+        Entry entry = get(key);
+        if (entry != null) {
+            hits.increment();
+            if (interner.size() > maxNodes) { // readers may have built expressions that were never evaluated
+                trim();
+            }
+        } else {
+            misses.increment();
+            List<String> free = new ArrayList<>(Expressions.freeVariables(key));
+            entry = new Entry(free, Compiler.compile(key, free));
+            put(key, entry);
+        }
+        return entry.eval(globals);
+    }
+
+    public Primitive eval(Expression input) {
+        return eval(input, Collections.emptyMap());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // The number of expression nodes held for keys, and for expressions built since the interner was last replaced.
+    public int nodes() {
+        return interner.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+}
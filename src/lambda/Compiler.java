@@ -1,5 +1,11 @@
 package lambda;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import static lambda.Primitives.toFunction;
 
 /**
@@ -9,46 +15,143 @@ import static lambda.Primitives.toFunction;
 public class Compiler {
 
     public static interface Implementation {
-        public Primitive eval(List<Primitive> valueStack);
+        public Primitive eval(Primitive[] closure, Primitive arg);
+    }
+
+    // Code tagged with the source it was compiled from, which is what it shows as. Running it pushes the source on
+    // the Profiler's shadow stack for the duration.
+    public static final class Tagged implements Implementation {
+        public final Expression source;
+        private final Implementation code;
+
+        private Tagged(Expression source, Implementation code) {
+            this.source = source;
+            this.code = code;
+        }
+
+        @Override
+        public Primitive eval(Primitive[] closure, Primitive arg) {
+            Profiler.enter(source);
+            try {
+                return code.eval(closure, arg);
+            } finally {
+                Profiler.exit();
+            }
+        }
+
+        public String toString() {
+            return Expressions.toString(source, 100);
+        }
     }
 
-    // This visitor turns symbols into numbers at 'compile' time and provides a mechanism for evaluation.
-    private static Expression.Visitor<Implementation> createCompiler(List<String> nameStack) {
+    // Lambda bodies and top-level expressions are tagged when profiling.
+    private static Implementation tag(Expression source, Implementation code) {
+        return Profiler.ENABLED ? new Tagged(source, code) : code;
+    }
+
+    // This visitor turns symbols into slots at 'compile' time and provides a mechanism for evaluation. A symbol is
+    // either the argument of the enclosing lambda or an index into the flat closure record which that lambda filled
+    // with its free variables when it was created -- so enclosing frames are neither walked nor kept alive. Code
+    // compiled with a budget charges each application and closure to it; when Metrics is enabled they are counted.
+    // When profiling, lambda bodies are Tagged with their source. The free variables of the bodies of nested lambdas
+    // are found once, at the outermost lambda, and passed in as 'bodies'.
+    private static Expression.Visitor<Implementation> createCompiler(String param, List<String> captured,
+                                                                     Budget budget,
+                                                                     Map<Expression, Set<String>> bodies) {
         return new Expression.Visitor<Implementation>() {
                     @Override
                     public Implementation constant(Primitive value) {
-                        return env -> value;
+                        return (closure, arg) -> value;
                     }
 
                     @Override
                     public Implementation symbol(String name) {
-                        int index = nameStack.indexOf(name);
-                        return env -> env.get(index);
+                        if (name.equals(param)) {
+                            return (closure, arg) -> arg;
+                        }
+                        int index = captured.indexOf(name);
+                        if (index < 0) {
+                            throw new RuntimeException("Undefined variable: " + name);
+                        }
+                        return (closure, arg) -> closure[index];
                     }
 
                     @Override
                     public Implementation application(Expression fun, Expression arg) {
                         Implementation fun0 = fun.accept(this);
                         Implementation arg0 = arg.accept(this);
-                        return env -> toFunction(fun0.eval(env)).apply(arg0.eval(env));
+                        if (budget != null) {
+                            return (closure, a) -> {
+                                budget.charge();
+                                if (Metrics.ENABLED) {
+                                    Metrics.APPLICATIONS.increment();
+                                }
+                                return toFunction(fun0.eval(closure, a)).apply(arg0.eval(closure, a));
+                            };
+                        }
+                        if (Metrics.ENABLED) {
+                            return (closure, a) -> {
+                                Metrics.APPLICATIONS.increment();
+                                return toFunction(fun0.eval(closure, a)).apply(arg0.eval(closure, a));
+                            };
+                        }
+                        return (closure, a) -> toFunction(fun0.eval(closure, a)).apply(arg0.eval(closure, a));
                     }
 
                     @Override
                     public Implementation lambda(String var, Expression exp) {
-                        Implementation exp0 = exp.accept(createCompiler(List.create(nameStack, var)));
-                        return env -> Primitives.CONSTRUCTOR.function(arg -> exp0.eval(List.create(env, arg)));
+                        Map<Expression, Set<String>> bodies0 =
+                                bodies != null ? bodies : Expressions.freeVariablesOfBodies(exp);
+                        List<String> free = new ArrayList<>(bodies0.get(exp));
+                        free.remove(var);
+                        Implementation exp0 = tag(Expressions.CONSTRUCTOR.lambda(var, exp),
+                                exp.accept(createCompiler(var, free, budget, bodies0)));
+                        Implementation[] slots = new Implementation[free.size()];
+                        for (int i = 0; i < slots.length; i++) {
+                            slots[i] = symbol(free.get(i));
+                        }
+                        return (closure, a) -> {
+                            if (budget != null) {
+                                budget.chargeClosure(slots.length);
+                            }
+                            Primitive[] values = new Primitive[slots.length];
+                            for (int i = 0; i < slots.length; i++) {
+                                values[i] = slots[i].eval(closure, a);
+                            }
+                            if (Metrics.ENABLED) {
+                                Metrics.CLOSURES.increment();
+                                return Primitives.CONSTRUCTOR.function(arg -> {
+                                    Metrics.ENTRIES.increment();
+                                    return exp0.eval(values, arg);
+                                });
+                            }
+                            return Primitives.CONSTRUCTOR.function(arg -> exp0.eval(values, arg));
+                        };
                     }
                 };
     }
 
-    public static final Expression.Visitor<Implementation> COMPILER = createCompiler(new List<String>(null, null) {
-        @Override
-        public int indexOf(String name) {
-            throw new RuntimeException("Undefined variable: " + name);
-        }
-    });
+    public static final Expression.Visitor<Implementation> COMPILER =
+            createCompiler(null, Collections.emptyList(), null, null);
+
+    // Compiles an expression whose free variables will be supplied, in the order given, as the closure record.
+    public static Implementation compile(Expression input, List<String> globals) {
+        return tag(input, input.accept(createCompiler(null, globals, null, null)));
+    }
 
     public static Primitive eval(Expression input) {
-        return input.accept(COMPILER).eval(null);
+        return eval(input, false);
+    }
+
+    // Metered code is compiled against the thread's current Budget, if it has one.
+    public static Primitive eval(Expression input, boolean metered) {
+        return eval(input, metered ? Budget.current() : null);
+    }
+
+    // Code compiled against the budget charges it, even when run later; null for unmetered code.
+    public static Primitive eval(Expression input, Budget budget) {
+        Expression.Visitor<Implementation> compiler =
+                budget == null ? COMPILER : createCompiler(null, Collections.emptyList(), budget, null);
+        return tag(input, input.accept(compiler)).eval(null, null);
     }
 }
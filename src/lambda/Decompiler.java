@@ -1,73 +1,152 @@
 package lambda;
 
-import static lambda.Primitives.primitive;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 /**
+ * Reads values back into expressions by normalization by evaluation. A function is read back by applying it to a
+ * Neutral value -- a variable, or a variable applied to arguments -- and reading back the result one level deeper.
+ * Neutrals only record their arguments, which are read back later, so the readback itself is a loop over an
+ * explicit stack and large normal forms don't overflow the Java stack. A value that is reached more than once at
+ * the same level is read back once and its expression shared.
+ *
  * @author pmilne
  */
 @SuppressWarnings("UnnecessaryInterfaceModifier, WeakerAccess")
 public class Decompiler {
-    private static String varName(int i) {
-        return new String(new byte[]{(byte) ('a' + i)});
+    private static final int LETTERS = 26;
+    private static final String[] NAMES = new String[LETTERS];
+
+    static {
+        for (int i = 0; i < LETTERS; i++) {
+            NAMES[i] = String.valueOf((char) ('a' + i));
+        }
     }
 
-    private static interface Mole extends PrimitiveFunction {
-        Expression getExpression();
+    private static String varName(int level) {
+        return level < LETTERS ? NAMES[level] : NAMES[level % LETTERS] + level / LETTERS;
     }
 
-    public static abstract class Converter {
-        public abstract Expression toExpression(Primitive o);
+    // The variable bound at 'level', applied to the arguments in the chain of funs.
+    private static final class Neutral extends Primitive implements PrimitiveFunction {
+        private final int level;
+        private final Neutral fun; // null for the variable itself
+        private final Primitive arg;
 
-        public abstract Expression createLambda(String var, PrimitiveFunction f);
+        private Neutral(int level, Neutral fun, Primitive arg) {
+            this.level = level;
+            this.fun = fun;
+            this.arg = arg;
+        }
 
-        public static Converter create(int level) {
-            Expression.Visitor<Expression> c = Expressions.CONSTRUCTOR;
-            return new Converter() {
-                private Mole createMole(Expression exp) {
-                    return new Mole() {
-                        @Override
-                        public Expression getExpression() {
-                            return exp;
-                        }
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.function(this);
+        }
 
-                        public Primitive apply(Primitive a) {
-                            return primitive(createMole(c.application(exp, toExpression(a))));
-                        }
-                    };
-                }
+        @Override
+        public Primitive apply(Primitive a) {
+            if (Metrics.ENABLED) {
+                Metrics.NEUTRALS.increment();
+            }
+            return new Neutral(level, this, a);
+        }
+    }
 
-                public Expression createLambda(String var, PrimitiveFunction f) {
-                    return c.lambda(var, toExpression(f.apply(primitive(createMole(c.symbol(var))))));
-                }
+    private static interface Task {
+        public void run();
+    }
 
-                public Expression toExpression(Primitive o) {
-                    return o.accept(new Primitive.Visitor<Expression>() {
-                        @Override
-                        public Expression integer(int i) {
-                            return c.constant(o);
-                        }
+    private static class ReadBack {
+        private final Expression.Visitor<Expression> c;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private final ArrayDeque<Expression> results = new ArrayDeque<>();
+        private final ArrayList<IdentityHashMap<Primitive, Expression>> shared = new ArrayList<>();
 
-                        @Override
-                        public Expression string(String s) {
-                            return c.constant(o);
-                        }
+        private ReadBack(Expression.Visitor<Expression> c) {
+            this.c = c;
+        }
 
-                        @Override
-                        public Expression function(PrimitiveFunction f) {
-                            if (f instanceof Mole) {
-                                return ((Mole) f).getExpression();
-                            }
-                            return create(level + 1).createLambda(varName(level), f);
+        private IdentityHashMap<Primitive, Expression> shared(int level) {
+            while (shared.size() <= level) {
+                shared.add(new IdentityHashMap<>());
+            }
+            return shared.get(level);
+        }
+
+        private void read(Primitive value, int level) {
+            tasks.push(() -> visit(value, level));
+        }
+
+        private void build(Primitive value, int level, Expression e) {
+            shared(level).put(value, e);
+            results.push(e);
+        }
+
+        private void visit(Primitive value, int level) {
+            Expression e = shared(level).get(value);
+            if (e != null) {
+                results.push(e);
+                return;
+            }
+            value.accept(new Primitive.Visitor<Void>() {
+                @Override
+                public Void integer(int i) {
+                    results.push(c.constant(value));
+                    return null;
+                }
+
+                @Override
+                public Void string(String s) {
+                    results.push(c.constant(value));
+                    return null;
+                }
+
+                @Override
+                public Void function(PrimitiveFunction f) {
+                    if (f instanceof Neutral) {
+                        Neutral n = (Neutral) f;
+                        if (n.fun == null) {
+                            results.push(c.symbol(varName(n.level)));
+                        } else {
+                            tasks.push(() -> {
+                                Expression arg = results.pop();
+                                build(value, level, c.application(results.pop(), arg));
+                            });
+                            read(n.arg, level);
+                            read(n.fun, level);
                         }
-                    });
+                    } else {
+                        String var = varName(level);
+                        Primitive body = f.apply(new Neutral(level, null, null));
+                        tasks.push(() -> build(value, level, c.lambda(var, results.pop())));
+                        read(body, level + 1);
+                    }
+                    return null;
                 }
-            };
+            });
+        }
+
+        public Expression run(Primitive value) {
+            read(value, 0);
+            while (!tasks.isEmpty()) {
+                tasks.pop().run();
+            }
+            return results.pop();
         }
     }
 
-    public static final Converter TO_EXPRESSION = Converter.create(0);
+    public static Expression toExpression(Primitive o, Expression.Visitor<Expression> constructor) {
+        return new ReadBack(constructor).run(o);
+    }
 
     public static Expression toExpression(Primitive o) {
-        return TO_EXPRESSION.toExpression(o);
+        return toExpression(o, Expressions.CONSTRUCTOR);
+    }
+
+    // The normal form of e, if it has one.
+    public static Expression normalize(Expression e) {
+        return toExpression(Machine.eval(e));
     }
 }
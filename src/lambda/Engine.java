@@ -0,0 +1,73 @@
+package lambda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import lisp.Reader;
+
+/**
+ * Evaluates lisp source on an executor, any number of requests at a time, in an environment of global values.
+ * <p>
+ * Thread-safety: an Engine is immutable and can be shared between threads; define answers a new Engine and leaves
+ * this one as it was. Each request is read and compiled afresh -- the readers and compilers keep no shared state --
+ * and runs with its own Budget, so one request can't exhaust another's steps and can be cancelled alone. The global
+ * values are shared by all requests; primitives and compiled closures are immutable, so that is safe.
+ * <p>
+ * Cancelling a request's future stops its evaluation at the budget's next check, which is made every few thousand
+ * applications of compiled code. Time spent inside a primitive function isn't metered. Each request is recorded in
+ * Metrics, as a JFR event and, when counting is enabled, in the profile for its source.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Engine {
+    private final Map<String, Primitive> globals;
+    private final Executor executor;
+    private final long maxSteps;
+
+    public Engine(Map<String, Primitive> globals, Executor executor, long maxSteps) {
+        this.globals = Collections.unmodifiableMap(new HashMap<>(globals));
+        this.executor = executor;
+        this.maxSteps = maxSteps;
+    }
+
+    public Map<String, Primitive> globals() {
+        return globals;
+    }
+
+    public Engine define(String name, Primitive value) {
+        Map<String, Primitive> globals0 = new HashMap<>(globals);
+        globals0.put(name, value);
+        return new Engine(globals0, executor, maxSteps);
+    }
+
+    // Evaluates the source now, on this thread, within the engine's budget. The value's code charges the budget of
+    // whichever request runs it, so it is compiled against Budget.CALLER rather than the budget of this definition.
+    public Engine define(String name, String source) {
+        Budget budget = new Budget(maxSteps);
+        return define(name, budget.run(() -> Metrics.measure(source, budget, () -> eval(source, Budget.CALLER))));
+    }
+
+    private Primitive eval(String source, Budget budget) {
+        ArrayList<Expression> input = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR).parse(source, input::add);
+        if (input.size() != 1) {
+            throw new RuntimeException("Not a single expression: " + source);
+        }
+        return Compiler.eval(Expressions.substitute(input.get(0), globals), budget);
+    }
+
+    public CompletableFuture<Primitive> submit(String source) {
+        Budget budget = new Budget(maxSteps);
+        CompletableFuture<Primitive> result = CompletableFuture.supplyAsync(
+                () -> budget.run(() -> Metrics.measure(source, budget, () -> eval(source, budget))), executor);
+        result.whenComplete((value, failure) -> {
+            if (result.isCancelled()) {
+                budget.cancel();
+            }
+        });
+        return result;
+    }
+}
@@ -8,29 +8,45 @@ import static lambda.Primitives.toFunction;
  * @author pmilne
  */
 public class Evaluator {
-    private static final Function<String, Primitive> TOP = name -> {
-        throw new RuntimeException("Undefined variable: " + name);
-    };
-
-    public static Primitive eval(Expression e, Function<String, Primitive> env) {
-        return e.accept(new Expression.Visitor<Primitive>() {
+    // Variables are looked up by their de Bruijn index, so no names are compared at run time. Each application and
+    // closure is charged to the budget, if there is one, and counted in Metrics, when it is enabled.
+    private static Primitive eval(Term t, List<Primitive> env, Budget budget) {
+        return t.accept(new Term.Visitor<Primitive>() {
             @Override
             public Primitive constant(Primitive value) {
                 return value;
             }
 
             @Override
-            public Primitive symbol(String name) {
-                return env.apply(name);
+            public Primitive variable(int index) {
+                return env.get(index);
             }
 
             @Override
-            public Primitive lambda(String var, Expression exp) {
-                return Primitives.CONSTRUCTOR.function(arg -> eval(exp, s -> s.equals(var) ? arg : env.apply(s)));
+            public Primitive lambda(Term body) {
+                if (budget != null) {
+                    budget.chargeClosure(1);
+                }
+                if (Metrics.ENABLED) {
+                    Metrics.CLOSURES.increment();
+                }
+                return Primitives.CONSTRUCTOR.function(arg -> {
+                    if (Metrics.ENABLED) {
+                        Metrics.ENTRIES.increment();
+                        Metrics.FRAMES.increment();
+                    }
+                    return eval(body, List.create(env, arg), budget);
+                });
             }
 
             @Override
-            public Primitive application(Expression fun, Expression arg) {
+            public Primitive application(Term fun, Term arg) {
+                if (budget != null) {
+                    budget.charge();
+                }
+                if (Metrics.ENABLED) {
+                    Metrics.APPLICATIONS.increment();
+                }
                 Primitive fun0 = fun.accept(this);
                 Primitive arg0 = arg.accept(this);
                 return toFunction(fun0).apply(arg0);
@@ -38,7 +54,20 @@ public class Evaluator {
         });
     }
 
+    public static Primitive eval(Term t, List<Primitive> env) {
+        return eval(t, env, null);
+    }
+
+    public static Primitive eval(Expression e, Function<String, Primitive> env) {
+        return eval(Terms.resolve(e, env), null);
+    }
+
     public static Primitive eval(Expression e) {
-        return eval(e, TOP);
+        return eval(Terms.resolve(e), null);
+    }
+
+    // Metered evaluation charges the thread's current Budget, if it has one.
+    public static Primitive eval(Expression e, boolean metered) {
+        return eval(Terms.resolve(e), null, metered ? Budget.current() : null);
     }
 }
@@ -1,6 +1,13 @@
 package lambda;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author pmilne
@@ -49,6 +56,89 @@ public class Expressions {
                 }
             };
 
+    // Prints with a stack of the Expressions and Strings still to print rather than by recursion, so any depth of
+    // expression can be printed, in time linear in its size.
+    private static class Printer extends Expression.Visitor<String> {
+        private static final String ELLIPSIS = "...";
+
+        private final Appendable out;
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        private long remaining;
+
+        private Printer(Appendable out, long limit) {
+            this.out = out;
+            this.remaining = limit;
+        }
+
+        // Each method prints the start of its node and leaves the rest pending.
+        @Override
+        public String constant(Primitive c) {
+            return c.toString();
+        }
+
+        @Override
+        public String symbol(String name) {
+            return name;
+        }
+
+        @Override
+        public String application(Expression fun, Expression arg) {
+            pending.push(")");
+            pending.push(arg);
+            pending.push(" ");
+            pending.push(fun);
+            return "(";
+        }
+
+        @Override
+        public String lambda(String var, Expression exp) {
+            pending.push(")");
+            pending.push(exp);
+            pending.push(") ");
+            pending.push(var);
+            return "(lambda (";
+        }
+
+        private void print(Object... parts) throws IOException {
+            for (int i = parts.length - 1; i >= 0; i--) {
+                pending.push(parts[i]);
+            }
+            while (!pending.isEmpty()) {
+                Object next = pending.pop();
+                String s = next instanceof Expression ? ((Expression) next).accept(this) : (String) next;
+                if (s.length() > remaining) {
+                    out.append(s, 0, (int) remaining).append(ELLIPSIS);
+                    return;
+                }
+                out.append(s);
+                remaining -= s.length();
+            }
+        }
+    }
+
+    // Prints e to out; if that would take more than 'limit' chars, prints the first 'limit' of them and "...".
+    public static void print(Expression e, Appendable out, long limit) throws IOException {
+        new Printer(out, limit).print(e);
+    }
+
+    public static void print(Expression e, Appendable out) throws IOException {
+        print(e, out, Long.MAX_VALUE);
+    }
+
+    private static String toString(long limit, Object... parts) {
+        StringBuilder result = new StringBuilder();
+        try {
+            new Printer(result, limit).print(parts);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // StringBuilder doesn't throw it
+        }
+        return result.toString();
+    }
+
+    public static String toString(Expression e, long limit) {
+        return toString(limit, e);
+    }
+
     @SuppressWarnings("WeakerAccess")
     public static final Expression.Visitor<String> TO_STRING = new Expression.Visitor<String>() {
         @Override
@@ -63,15 +153,97 @@ public class Expressions {
 
         @Override
         public String application(Expression fun, Expression arg) {
-            return "(" + fun.accept(this) + " " + arg.accept(this) + ")";
+            return Expressions.toString(Long.MAX_VALUE, "(", fun, " ", arg, ")");
         }
 
         @Override
         public String lambda(String var, Expression exp) {
-            return "(lambda (" + var + ") " + exp.accept(this) + ")";
+            return Expressions.toString(Long.MAX_VALUE, "(lambda (", var, ") ", exp, ")");
         }
     };
 
+    private static Expression.Visitor<Void> freeVariableCollector(Set<String> result, Set<String> bound) {
+        return new Expression.Visitor<Void>() {
+            @Override
+            public Void constant(Primitive value) {
+                return null;
+            }
+
+            @Override
+            public Void symbol(String name) {
+                if (!bound.contains(name)) {
+                    result.add(name);
+                }
+                return null;
+            }
+
+            @Override
+            public Void lambda(String var, Expression exp) {
+                Set<String> inner = new HashSet<>(bound);
+                inner.add(var);
+                return exp.accept(freeVariableCollector(result, inner));
+            }
+
+            @Override
+            public Void application(Expression fun, Expression arg) {
+                fun.accept(this);
+                return arg.accept(this);
+            }
+        };
+    }
+
+    // The names that occur free in the input, in order of first occurrence.
+    public static Set<String> freeVariables(Expression input) {
+        Set<String> result = new LinkedHashSet<>();
+        input.accept(freeVariableCollector(result, Collections.emptySet()));
+        return result;
+    }
+
+    // The free variables of the input and of the body of every lambda in it, each in order of first occurrence and
+    // keyed by identity. One bottom-up pass finds them all, where calling freeVariables on each body in turn takes
+    // time quadratic in the depth of nesting. The sets must not be changed.
+    public static Map<Expression, Set<String>> freeVariablesOfBodies(Expression input) {
+        Map<Expression, Set<String>> result = new IdentityHashMap<>();
+        result.put(input, input.accept(new Expression.Visitor<Set<String>>() {
+            @Override
+            public Set<String> constant(Primitive value) {
+                return Collections.emptySet();
+            }
+
+            @Override
+            public Set<String> symbol(String name) {
+                return Collections.singleton(name);
+            }
+
+            @Override
+            public Set<String> lambda(String var, Expression exp) {
+                Set<String> body = exp.accept(this);
+                result.put(exp, body);
+                if (!body.contains(var)) {
+                    return body;
+                }
+                Set<String> free = new LinkedHashSet<>(body);
+                free.remove(var);
+                return free;
+            }
+
+            @Override
+            public Set<String> application(Expression fun, Expression arg) {
+                Set<String> free = fun.accept(this);
+                Set<String> free2 = arg.accept(this);
+                if (free.containsAll(free2)) {
+                    return free;
+                }
+                if (free.isEmpty()) {
+                    return free2;
+                }
+                Set<String> union = new LinkedHashSet<>(free);
+                union.addAll(free2);
+                return union;
+            }
+        }));
+        return result;
+    }
 
     public static Expression substitute(Expression input, Map<String, Primitive> env) {
         Expression.Visitor<Expression> c = Expressions.CONSTRUCTOR;
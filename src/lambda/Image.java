@@ -0,0 +1,173 @@
+package lambda;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lisp.Reader;
+
+/**
+ * A saved environment of named definitions, so that the work of reading them -- and normalizing them, if asked --
+ * is done once when the image is saved rather than every time a JVM starts.
+ * <p>
+ * Each definition is lisp source which may refer to the base environment and to the definitions before it. An
+ * image file holds, for each definition, its name, its source and the expression it was saved as: its normal form
+ * if it has one that can be read back, otherwise its parsed form. The expressions are in BinaryFormat, read
+ * straight out of the mapped file when the image is loaded. Loading then only evaluates expressions which are, for
+ * the most part, already in normal form.
+ * <p>
+ * An Image is immutable.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Image {
+    private static final int MAGIC = 0x4C494D31; // "LIM1"
+
+    private final Map<String, String> sources;
+    private final Map<String, Expression> expressions;
+    private final Map<String, Primitive> values;
+
+    private Image(Map<String, String> sources, Map<String, Expression> expressions, Map<String, Primitive> values) {
+        this.sources = Collections.unmodifiableMap(sources);
+        this.expressions = Collections.unmodifiableMap(expressions);
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    public String source(String name) {
+        return sources.get(name);
+    }
+
+    public Expression expression(String name) {
+        return expressions.get(name);
+    }
+
+    // The base environment the image was loaded with, and the values of the image's definitions.
+    public Map<String, Primitive> values() {
+        return values;
+    }
+
+    private static Expression parse(String name, String source) {
+        ArrayList<Expression> result = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR).parse(source, result::add);
+        if (result.size() != 1) {
+            throw new RuntimeException("Definition of " + name + " is not a single expression: " + source);
+        }
+        return result.get(0);
+    }
+
+    // Definitions are optimized once, here, rather than on every use.
+    private static Primitive eval(Expression e, Map<String, Primitive> values) {
+        return Compiler.eval(Optimizer.optimize(Expressions.substitute(e, values)));
+    }
+
+    // Evaluates the expressions in order, each in the base environment plus the definitions before it.
+    private static Image create(Map<String, String> sources, Map<String, Expression> expressions,
+                                Map<String, Primitive> base) {
+        Map<String, Primitive> values = new LinkedHashMap<>(base);
+        for (Map.Entry<String, Expression> entry : expressions.entrySet()) {
+            values.put(entry.getKey(), eval(entry.getValue(), values));
+        }
+        return new Image(sources, expressions, values);
+    }
+
+    private static final long NORMALIZE_STEPS = 1L << 24;
+    private static final long NORMALIZE_BYTES = 1L << 28;
+
+    // The normal form of e, or null if none is found within budget. It is read back from a metered evaluation of e
+    // with the definitions before it bound around it, rather than from e's value, so that the work of evaluating
+    // their bodies is charged to the budget too.
+    private static Expression normalize(Expression e, Map<String, Expression> expressions,
+                                        Map<String, Primitive> base) {
+        ArrayList<Map.Entry<String, Expression>> definitions = new ArrayList<>(expressions.entrySet());
+        Expression bound = e;
+        for (int i = definitions.size() - 1; i >= 0; i--) {
+            Map.Entry<String, Expression> definition = definitions.get(i);
+            bound = Expressions.CONSTRUCTOR.application(Expressions.CONSTRUCTOR.lambda(definition.getKey(), bound),
+                    definition.getValue());
+        }
+        Expression input = Expressions.substitute(bound, base);
+        try {
+            return new Budget(NORMALIZE_STEPS, NORMALIZE_BYTES, Long.MAX_VALUE)
+                    .run(() -> Decompiler.toExpression(Compiler.eval(input, true)));
+        } catch (RuntimeException | StackOverflowError | OutOfMemoryError ignored) {
+            return null; // Budget.Exceeded, or a value which can't be read back
+        }
+    }
+
+    // Reads the definitions, which are name to source in order of definition. When 'normalize', each definition is
+    // saved in normal form if it can be read back -- which needs it to have one, found within a budget of steps,
+    // and not to use primitive functions in its body.
+    public static Image create(Map<String, String> definitions, Map<String, Primitive> base, boolean normalize) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        Map<String, Expression> expressions = new LinkedHashMap<>();
+        Map<String, Primitive> values = new LinkedHashMap<>(base);
+        for (Map.Entry<String, String> definition : definitions.entrySet()) {
+            String name = definition.getKey();
+            Expression e = parse(name, definition.getValue());
+            values.put(name, eval(e, values));
+            Expression normal = normalize ? normalize(e, expressions, base) : null;
+            sources.put(name, definition.getValue());
+            expressions.put(name, normal != null ? normal : e);
+        }
+        return new Image(sources, expressions, values);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void save(Path path) throws IOException {
+        BinaryFormat.Writer writer = new BinaryFormat.Writer();
+        try (OutputStream file = Files.newOutputStream(path); DataOutputStream out = new DataOutputStream(file)) {
+            out.writeInt(MAGIC);
+            out.writeInt(sources.size());
+            for (Map.Entry<String, String> entry : sources.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+                writer.write(expressions.get(entry.getKey()));
+            }
+            out.write(writer.toByteArray());
+        }
+    }
+
+    public static Image load(Path path, Map<String, Primitive> base) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // the mapping outlives the channel
+        }
+        if (in.getInt() != MAGIC) {
+            throw new RuntimeException("Not an image: " + path);
+        }
+        int count = in.getInt();
+        ArrayList<String> names = new ArrayList<>();
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            names.add(name);
+            sources.put(name, readString(in));
+        }
+        Map<String, Expression> expressions = new LinkedHashMap<>();
+        BinaryFormat.read(in, Expressions.CONSTRUCTOR, e -> expressions.put(names.get(expressions.size()), e));
+        if (expressions.size() != count) {
+            throw new RuntimeException("Truncated image: " + path);
+        }
+        return create(sources, expressions, base);
+    }
+}
@@ -0,0 +1,43 @@
+package lambda;
+
+/**
+ * The representation of integers: the value is held unboxed, so reading it back is a field load rather than a
+ * visit through Primitives.TO_INT. Small values are shared.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class IntPrimitive extends Primitive {
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1023;
+    private static final IntPrimitive[] CACHE = new IntPrimitive[CACHE_HIGH - CACHE_LOW + 1];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new IntPrimitive(CACHE_LOW + i);
+        }
+    }
+
+    public final int value;
+
+    private IntPrimitive(int value) {
+        this.value = value;
+    }
+
+    public static IntPrimitive valueOf(int i) {
+        return CACHE_LOW <= i && i <= CACHE_HIGH ? CACHE[i - CACHE_LOW] : new IntPrimitive(i);
+    }
+
+    @Override
+    public <T> T accept(Visitor<T> visitor) {
+        return visitor.integer(value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IntPrimitive && ((IntPrimitive) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return value;
+    }
+}
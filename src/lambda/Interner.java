@@ -0,0 +1,254 @@
+package lambda;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An Expression constructor which hash-conses: it answers one canonical node for all the expressions it is asked
+ * to build that are equal up to the renaming of bound variables, so equal subterms are stored once and can be
+ * compared with == and hashed in constant time. The canonical node is the first one built, names and all.
+ * <p>
+ * Nodes are keyed by their shape, a locally nameless form of the expression: bound variables are de Bruijn
+ * indices and free variables keep their names. Shapes are interned too, so comparing two of them only compares
+ * their children by identity.
+ * <p>
+ * An Interner holds on to everything it has built; its lifetime bounds the memory used. It is safe to share
+ * between threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Interner extends Expression.Visitor<Expression> {
+    private static abstract class Shape {
+        protected final int hash;
+        protected final Set<String> free;
+
+        protected Shape(int hash, Set<String> free) {
+            this.hash = hash;
+            this.free = free;
+        }
+
+        // Replaces the free occurrences of name, which must occur, with the index of a binder 'depth' lambdas out.
+        public abstract Shape bind(Interner interner, String name, int depth);
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class ConstantShape extends Shape {
+        private final Primitive value;
+
+        private ConstantShape(Primitive value) {
+            super(value.hashCode() * 31 + 1, Collections.emptySet());
+            this.value = value;
+        }
+
+        @Override
+        public Shape bind(Interner interner, String name, int depth) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ConstantShape && value.equals(((ConstantShape) o).value);
+        }
+    }
+
+    private static final class FreeShape extends Shape {
+        private final String name;
+
+        private FreeShape(String name) {
+            super(name.hashCode() * 31 + 2, Collections.singleton(name));
+            this.name = name;
+        }
+
+        @Override
+        public Shape bind(Interner interner, String name, int depth) {
+            return interner.shape(new BoundShape(depth));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FreeShape && name.equals(((FreeShape) o).name);
+        }
+    }
+
+    private static final class BoundShape extends Shape {
+        private final int index;
+
+        private BoundShape(int index) {
+            super(index * 31 + 3, Collections.emptySet());
+            this.index = index;
+        }
+
+        @Override
+        public Shape bind(Interner interner, String name, int depth) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BoundShape && index == ((BoundShape) o).index;
+        }
+    }
+
+    private static final class LambdaShape extends Shape {
+        private final Shape body;
+
+        private LambdaShape(Shape body) {
+            super(body.hash * 31 + 4, body.free);
+            this.body = body;
+        }
+
+        @Override
+        public Shape bind(Interner interner, String name, int depth) {
+            return interner.shape(new LambdaShape(interner.bind(body, name, depth + 1)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LambdaShape && body == ((LambdaShape) o).body;
+        }
+    }
+
+    private static final class ApplicationShape extends Shape {
+        private final Shape fun;
+        private final Shape arg;
+
+        private ApplicationShape(Shape fun, Shape arg) {
+            super((fun.hash * 31 + arg.hash) * 31 + 5, union(fun.free, arg.free));
+            this.fun = fun;
+            this.arg = arg;
+        }
+
+        private static Set<String> union(Set<String> s1, Set<String> s2) {
+            if (s1.containsAll(s2)) {
+                return s1;
+            }
+            if (s2.containsAll(s1)) {
+                return s2;
+            }
+            Set<String> result = new HashSet<>(s1);
+            result.addAll(s2);
+            return result;
+        }
+
+        @Override
+        public Shape bind(Interner interner, String name, int depth) {
+            Shape fun0 = interner.bind(fun, name, depth);
+            Shape arg0 = interner.bind(arg, name, depth);
+            return interner.shape(new ApplicationShape(fun0, arg0));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ApplicationShape)) {
+                return false;
+            }
+            ApplicationShape that = (ApplicationShape) o;
+            return fun == that.fun && arg == that.arg;
+        }
+    }
+
+    private abstract class Node extends Expression {
+        protected final Shape shape;
+
+        protected Node(Shape shape) {
+            this.shape = shape;
+        }
+
+        public Interner interner() {
+            return Interner.this;
+        }
+
+        // Canonical nodes are equal only if they are identical, so the inherited equals is the right one.
+        @Override
+        public int hashCode() {
+            return shape.hash;
+        }
+    }
+
+    private final ConcurrentHashMap<Shape, Shape> shapes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Shape, Node> nodes = new ConcurrentHashMap<>();
+
+    private Shape shape(Shape s) {
+        Shape canonical = shapes.putIfAbsent(s, s);
+        return canonical == null ? s : canonical;
+    }
+
+    private Shape bind(Shape s, String name, int depth) {
+        return s.free.contains(name) ? s.bind(this, name, depth) : s;
+    }
+
+    private Node node(Node n) {
+        Node canonical = nodes.putIfAbsent(n.shape, n);
+        return canonical == null ? n : canonical;
+    }
+
+    private Node canonical(Expression e) {
+        return e instanceof Node && ((Node) e).interner() == this ? (Node) e : (Node) e.accept(this);
+    }
+
+    // The number of canonical nodes held.
+    public int size() {
+        return nodes.size();
+    }
+
+    // The canonical node for e, which may have been built by any constructor.
+    public Expression intern(Expression e) {
+        return canonical(e);
+    }
+
+    @Override
+    public Expression constant(Primitive c) {
+        Shape s = shape(new ConstantShape(c));
+        Node n = nodes.get(s);
+        return n != null ? n : node(new Node(s) {
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.constant(c);
+            }
+        });
+    }
+
+    @Override
+    public Expression symbol(String name) {
+        Shape s = shape(new FreeShape(name));
+        Node n = nodes.get(s);
+        return n != null ? n : node(new Node(s) {
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.symbol(name);
+            }
+        });
+    }
+
+    @Override
+    public Expression lambda(String var, Expression exp) {
+        Node body = canonical(exp);
+        Shape s = shape(new LambdaShape(bind(body.shape, var, 0)));
+        Node n = nodes.get(s);
+        return n != null ? n : node(new Node(s) {
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.lambda(var, body);
+            }
+        });
+    }
+
+    @Override
+    public Expression application(Expression fun, Expression arg) {
+        Node fun0 = canonical(fun);
+        Node arg0 = canonical(arg);
+        Shape s = shape(new ApplicationShape(fun0.shape, arg0.shape));
+        Node n = nodes.get(s);
+        return n != null ? n : node(new Node(s) {
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.application(fun0, arg0);
+            }
+        });
+    }
+}
@@ -0,0 +1,249 @@
+package lambda;
+
+import java.util.function.Function;
+
+import static lambda.Primitives.toFunction;
+
+/**
+ * A call-by-need version of Evaluator. Arguments which need work to compute are passed as suspensions, so an
+ * argument that is never used is never evaluated and one that is used many times is evaluated once. Arguments of
+ * strict primitives, which are always used, are evaluated before the primitive is called.
+ * <p>
+ * Like Machine, this is a CEK-style machine whose continuation is on the heap. Forcing a suspension pushes a frame
+ * which updates it with its value, so a chain of suspensions, each needing the next, is forced with constant Java
+ * stack -- a Church numeral applied lazily builds one as long as the number. Foreign functions are called on the
+ * Java stack, and a suspension they force, or a closure they call, is run by a fresh machine.
+ * <p>
+ * Metered evaluation charges each application, and each closure or suspension created, to the Budget the thread
+ * had when evaluation started; closures and suspensions keep it for the machines that run them later.
+ */
+public class LazyEvaluator {
+    private static abstract class Frame {
+        public final Frame next;
+
+        protected Frame(Frame next) {
+            this.next = next;
+        }
+
+        public abstract void resume(LazyEvaluator m);
+    }
+
+    private static final class Closure extends Primitive implements PrimitiveFunction {
+        private final Term body;
+        private final List<Primitive> env;
+        private final Budget budget;
+
+        private Closure(Term body, List<Primitive> env, Budget budget) {
+            this.body = body;
+            this.env = env;
+            this.budget = budget;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.function(this);
+        }
+
+        @Override
+        public Primitive apply(Primitive arg) {
+            if (Metrics.ENABLED) {
+                Metrics.ENTRIES.increment();
+                Metrics.FRAMES.increment();
+            }
+            return new LazyEvaluator(body, List.create(env, arg), budget).run();
+        }
+    }
+
+    // An argument whose evaluation is put off until its value is needed. It is evaluated at most once.
+    private static final class Suspension extends Primitive {
+        private Term term; // null once evaluated
+        private List<Primitive> env;
+        private Primitive value;
+        private final Budget budget;
+
+        private Suspension(Term term, List<Primitive> env, Budget budget) {
+            this.term = term;
+            this.env = env;
+            this.budget = budget;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            if (term != null) {
+                LazyEvaluator m = new LazyEvaluator(null, null, budget);
+                m.need(this);
+                m.run();
+            }
+            return value.accept(visitor);
+        }
+    }
+
+    // Registers
+    private Term term;
+    private List<Primitive> env;
+    private Primitive value;
+    private Frame continuation;
+
+    private final Budget budget; // null if not metered
+
+    private LazyEvaluator(Term term, List<Primitive> env, Budget budget) {
+        this.term = term;
+        this.env = env;
+        this.budget = budget;
+    }
+
+    // Sets value to p's value, evaluating it first if it is an unevaluated suspension.
+    private void need(Primitive p) {
+        if (p instanceof Suspension) {
+            Suspension s = (Suspension) p;
+            if (s.term != null) {
+                continuation = new Frame(continuation) { // update the suspension with its value
+                    @Override
+                    public void resume(LazyEvaluator m) {
+                        s.value = m.value;
+                        s.term = null;
+                        s.env = null; // drop the environment the computation captured
+                    }
+                };
+                term = s.term;
+                env = s.env;
+            } else {
+                value = s.value;
+            }
+        } else {
+            value = p;
+        }
+    }
+
+    private Primitive closure(Term body, List<Primitive> env) {
+        if (budget != null) {
+            budget.chargeClosure(1);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.CLOSURES.increment();
+        }
+        return new Closure(body, env, budget);
+    }
+
+    // The argument to pass for t: suspended if it needs work to compute.
+    private Primitive delay(Term t, List<Primitive> env) {
+        return t.accept(new Term.Visitor<Primitive>() {
+            @Override
+            public Primitive constant(Primitive c) {
+                return c;
+            }
+
+            @Override
+            public Primitive variable(int index) {
+                return env.get(index);
+            }
+
+            @Override
+            public Primitive lambda(Term body) {
+                return closure(body, env);
+            }
+
+            @Override
+            public Primitive application(Term fun, Term arg) {
+                if (budget != null) {
+                    budget.chargeClosure(1);
+                }
+                return new Suspension(t, env, budget);
+            }
+        });
+    }
+
+    private final Term.Visitor<Void> step = new Term.Visitor<Void>() {
+        @Override
+        public Void constant(Primitive c) {
+            value = c;
+            return null;
+        }
+
+        @Override
+        public Void variable(int index) {
+            need(env.get(index));
+            return null;
+        }
+
+        @Override
+        public Void lambda(Term body) {
+            value = closure(body, env);
+            return null;
+        }
+
+        @Override
+        public Void application(Term fun, Term arg) {
+            List<Primitive> env0 = env;
+            continuation = new Frame(continuation) { // apply fun, once it is known, to arg
+                @Override
+                public void resume(LazyEvaluator m) {
+                    m.apply(m.value, arg, env0);
+                }
+            };
+            term = fun;
+            return null;
+        }
+    };
+
+    private void apply(Primitive fun, Term arg, List<Primitive> argEnv) {
+        if (budget != null) {
+            budget.charge();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.APPLICATIONS.increment();
+        }
+        if (fun instanceof Closure) {
+            if (Metrics.ENABLED) {
+                Metrics.ENTRIES.increment();
+                Metrics.FRAMES.increment();
+            }
+            Closure closure = (Closure) fun;
+            Primitive arg0 = delay(arg, argEnv);
+            term = closure.body;
+            env = List.create(closure.env, arg0);
+            return;
+        }
+        PrimitiveFunction f = toFunction(fun);
+        if (f instanceof Primitives.Strict) {
+            continuation = new Frame(continuation) { // call f once its argument is known
+                @Override
+                public void resume(LazyEvaluator m) {
+                    m.value = f.apply(m.value);
+                }
+            };
+            term = arg;
+            env = argEnv;
+        } else {
+            value = f.apply(delay(arg, argEnv));
+        }
+    }
+
+    private Primitive run() {
+        while (true) {
+            if (term != null) {
+                Term t = term;
+                term = null;
+                t.accept(step);
+            } else if (continuation != null) {
+                Frame f = continuation;
+                continuation = f.next;
+                f.resume(this);
+            } else {
+                return value;
+            }
+        }
+    }
+
+    public static Primitive eval(Expression e, Function<String, Primitive> env) {
+        return new LazyEvaluator(Terms.resolve(e, env), null, null).run();
+    }
+
+    public static Primitive eval(Expression e) {
+        return new LazyEvaluator(Terms.resolve(e), null, null).run();
+    }
+
+    public static Primitive eval(Expression e, boolean metered) {
+        return new LazyEvaluator(Terms.resolve(e), null, metered ? Budget.current() : null).run();
+    }
+}
@@ -25,8 +25,15 @@ public class List<T> {
         return that.value;
     }
 
+    // Answers -1 if o is not in the list.
     public int indexOf(T o) {
-        return value.equals(o) ? 0 : 1 + parent.indexOf(o);
+        int i = 0;
+        for (List<T> that = this; that != null; that = that.parent, i++) {
+            if (o.equals(that.value)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public String toString() {
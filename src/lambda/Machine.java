@@ -0,0 +1,159 @@
+package lambda;
+
+import static lambda.Primitives.toFunction;
+
+/**
+ * A CEK-style evaluator: the control term, the environment and the continuation are held in fields and the
+ * continuation is a linked list of frames on the heap, so evaluation uses constant Java stack however deeply
+ * applications nest. Applying one of the machine's own closures is a jump rather than a call.
+ * <p>
+ * Symbols are resolved to de Bruijn indices (see Terms) before evaluation starts. Foreign functions
+ * (primitives, or closures made by the other evaluators) are called on the Java stack as usual; when they call
+ * back into one of the machine's closures a fresh machine runs the body.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Machine {
+    private static abstract class Frame {
+        public final Frame next;
+
+        protected Frame(Frame next) {
+            this.next = next;
+        }
+
+        public abstract void resume(Machine m);
+    }
+
+    private static final class Closure extends Primitive implements PrimitiveFunction {
+        private final Term body;
+        private final List<Primitive> env;
+        private final boolean metered;
+
+        private Closure(Term body, List<Primitive> env, boolean metered) {
+            this.body = body;
+            this.env = env;
+            this.metered = metered;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.function(this);
+        }
+
+        @Override
+        public Primitive apply(Primitive arg) {
+            if (Metrics.ENABLED) {
+                Metrics.ENTRIES.increment();
+                Metrics.FRAMES.increment();
+            }
+            return new Machine(body, List.create(env, arg), metered).run();
+        }
+    }
+
+    // Registers
+    private Term term;
+    private List<Primitive> env;
+    private Primitive value;
+    private Frame continuation;
+
+    // Metered machines charge applications and closures to the Budget of the thread they were started on.
+    private final boolean metered;
+    private final Budget budget;
+
+    private Machine(Term term, List<Primitive> env, boolean metered) {
+        this.term = term;
+        this.env = env;
+        this.metered = metered;
+        this.budget = metered ? Budget.current() : null;
+    }
+
+    private final Term.Visitor<Void> step = new Term.Visitor<Void>() {
+        @Override
+        public Void constant(Primitive c) {
+            value = c;
+            return null;
+        }
+
+        @Override
+        public Void variable(int index) {
+            value = env.get(index);
+            return null;
+        }
+
+        @Override
+        public Void lambda(Term body) {
+            if (budget != null) {
+                budget.chargeClosure(1);
+            }
+            if (Metrics.ENABLED) {
+                Metrics.CLOSURES.increment();
+            }
+            value = new Closure(body, env, metered);
+            return null;
+        }
+
+        @Override
+        public Void application(Term fun, Term arg) {
+            List<Primitive> env0 = env;
+            continuation = new Frame(continuation) { // evaluate the argument once fun is known
+                @Override
+                public void resume(Machine m) {
+                    Primitive fun0 = m.value;
+                    m.continuation = new Frame(m.continuation) { // then apply
+                        @Override
+                        public void resume(Machine m) {
+                            m.apply(fun0, m.value);
+                        }
+                    };
+                    m.term = arg;
+                    m.env = env0;
+                }
+            };
+            term = fun;
+            return null;
+        }
+    };
+
+    private void apply(Primitive fun, Primitive arg) {
+        if (budget != null) {
+            budget.charge();
+        }
+        if (Metrics.ENABLED) {
+            Metrics.APPLICATIONS.increment();
+        }
+        if (fun instanceof Closure) {
+            if (Metrics.ENABLED) {
+                Metrics.ENTRIES.increment();
+                Metrics.FRAMES.increment();
+            }
+            Closure closure = (Closure) fun;
+            term = closure.body;
+            env = List.create(closure.env, arg);
+        } else {
+            value = toFunction(fun).apply(arg);
+        }
+    }
+
+    private Primitive run() {
+        while (true) {
+            if (term != null) {
+                Term t = term;
+                term = null;
+                t.accept(step);
+            } else if (continuation != null) {
+                Frame f = continuation;
+                continuation = f.next;
+                f.resume(this);
+            } else {
+                return value;
+            }
+        }
+    }
+
+    public static Primitive eval(Expression input) {
+        return new Machine(Terms.resolve(input), null, false).run();
+    }
+
+    public static Primitive eval(Expression input, boolean metered) {
+        return new Machine(Terms.resolve(input), null, metered).run();
+    }
+}
@@ -0,0 +1,240 @@
+package lambda;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counts of the work the evaluators do, for finding out where the reductions of a request go.
+ * <p>
+ * Counting is off unless the JVM is started with -Dlambda.metrics=true. ENABLED is a constant, so when it is false
+ * the JIT drops the counting code altogether, and the bytecode compiler doesn't emit it. When it is true each event
+ * costs the increment of a LongAdder, which stays cheap when many threads count at once. The counters are:
+ * <pre>
+ *   APPLICATIONS  applications of a function value to an argument, in every evaluator
+ *   ENTRIES       entries into the body of a lambda
+ *   CLOSURES      closures created
+ *   FRAMES        environment frames (List cells) allocated
+ *   ITERATIONS    integers applied to a function, as Church numerals
+ *   NEUTRALS      applications of neutral values while the Decompiler reads a value back
+ * </pre>
+ * Engine also records the time and steps of each request in a histogram for its source, and, whether or not
+ * counting is on, commits an Evaluation event for JFR recordings that enable it. The counters and a summary of the
+ * histograms are published as the MXBean "lambda:type=Metrics".
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("lambda.metrics");
+
+    public static final LongAdder APPLICATIONS = new LongAdder();
+    public static final LongAdder ENTRIES = new LongAdder();
+    public static final LongAdder CLOSURES = new LongAdder();
+    public static final LongAdder FRAMES = new LongAdder();
+    public static final LongAdder ITERATIONS = new LongAdder();
+    public static final LongAdder NEUTRALS = new LongAdder();
+
+    // Beyond this many distinct sources, requests are recorded together under OTHER.
+    private static final int MAX_EXPRESSIONS = 1000;
+    private static final int MAX_KEY_LENGTH = 200;
+    private static final String OTHER = "(other)";
+
+    private static final ConcurrentHashMap<String, Profile> PROFILES = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+                        new ObjectName("lambda:type=Metrics"));
+            } catch (JMException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Called from generated code.
+    public static void application() {
+        APPLICATIONS.increment();
+    }
+
+    // Called from generated code.
+    public static void entry() {
+        ENTRIES.increment();
+    }
+
+    // Called from generated code.
+    public static void closure() {
+        CLOSURES.increment();
+    }
+
+    /**
+     * Counts of values in power-of-two buckets: bucket b holds the values v with 2^(b-1) <= v < 2^b, and bucket 0
+     * holds the values below 1. Percentiles are answered as the upper bound of the bucket they fall in, so are
+     * within a factor of two. Values may be recorded from any thread.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            buckets.incrementAndGet(value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long percentile(double q) {
+            long rank = (long) Math.ceil(q * count());
+            long seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen >= rank && seen > 0) {
+                    return b == 0 ? 0 : (1L << b) - 1;
+                }
+            }
+            return 0;
+        }
+
+        public String toString() {
+            long n = count();
+            return "count=" + n + " mean=" + (n == 0 ? 0 : sum() / n) + " p50<=" + percentile(0.5) +
+                    " p99<=" + percentile(0.99) + " max=" + max();
+        }
+    }
+
+    // The requests made for one source.
+    public static final class Profile {
+        public final Histogram nanos = new Histogram();
+        public final Histogram steps = new Histogram();
+
+        public String toString() {
+            return "nanos: " + nanos + "; steps: " + steps;
+        }
+    }
+
+    // The profile of the requests for this source, or null if none has been recorded.
+    public static Profile profile(String source) {
+        return PROFILES.get(key(source));
+    }
+
+    private static String key(String source) {
+        return source.length() <= MAX_KEY_LENGTH ? source : source.substring(0, MAX_KEY_LENGTH) + "...";
+    }
+
+    private static Profile profileFor(String source) {
+        String key = key(source);
+        Profile profile = PROFILES.get(key);
+        if (profile == null) {
+            profile = PROFILES.computeIfAbsent(PROFILES.size() < MAX_EXPRESSIONS ? key : OTHER, k -> new Profile());
+        }
+        return profile;
+    }
+
+    @Name("lambda.Evaluation")
+    @Label("Evaluation")
+    @Category("Lambda")
+    public static class Evaluation extends Event {
+        @Label("Source")
+        public String source;
+
+        @Label("Steps")
+        public long steps;
+    }
+
+    // Runs a request within the budget, which must be the thread's current one, and records what it took.
+    public static <T> T measure(String source, Budget budget, Supplier<T> task) {
+        Evaluation event = new Evaluation();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = key(source);
+                event.steps = budget.steps();
+                event.commit();
+            }
+            if (ENABLED) {
+                Profile profile = profileFor(source);
+                profile.nanos.record(nanos);
+                profile.steps.record(budget.steps());
+            }
+        }
+    }
+
+    public static Map<String, Long> counters() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("applications", APPLICATIONS.sum());
+        result.put("entries", ENTRIES.sum());
+        result.put("closures", CLOSURES.sum());
+        result.put("frames", FRAMES.sum());
+        result.put("iterations", ITERATIONS.sum());
+        result.put("neutrals", NEUTRALS.sum());
+        return result;
+    }
+
+    public static void reset() {
+        for (LongAdder counter : new LongAdder[]{APPLICATIONS, ENTRIES, CLOSURES, FRAMES, ITERATIONS, NEUTRALS}) {
+            counter.reset();
+        }
+        PROFILES.clear();
+    }
+
+    public static interface MetricsMXBean {
+        public Map<String, Long> getCounters();
+
+        public Map<String, String> getProfiles();
+
+        public void reset();
+    }
+
+    private static final class Bean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            return counters();
+        }
+
+        @Override
+        public Map<String, String> getProfiles() {
+            Map<String, String> result = new LinkedHashMap<>();
+            PROFILES.forEach((source, profile) -> result.put(source, profile.toString()));
+            return result;
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
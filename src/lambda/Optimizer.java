@@ -0,0 +1,444 @@
+package lambda;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static lambda.Primitives.*;
+
+/**
+ * Rewrites of expressions which preserve their values.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Optimizer {
+    private static final int PARALLEL_FOLD_THRESHOLD = 1 << 14;
+
+    // {fun, arg} for an application, null otherwise.
+    private static final Expression.Visitor<Expression[]> AS_APPLICATION = new Expression.Visitor<Expression[]>() {
+        @Override
+        public Expression[] constant(Primitive c) {
+            return null;
+        }
+
+        @Override
+        public Expression[] symbol(String name) {
+            return null;
+        }
+
+        @Override
+        public Expression[] lambda(String var, Expression exp) {
+            return null;
+        }
+
+        @Override
+        public Expression[] application(Expression fun, Expression arg) {
+            return new Expression[]{fun, arg};
+        }
+    };
+
+    private static final Expression.Visitor<Primitive> CONSTANT = new Expression.Visitor<Primitive>() {
+        @Override
+        public Primitive constant(Primitive c) {
+            return c;
+        }
+
+        @Override
+        public Primitive symbol(String name) {
+            return null;
+        }
+
+        @Override
+        public Primitive lambda(String var, Expression exp) {
+            return null;
+        }
+
+        @Override
+        public Primitive application(Expression fun, Expression arg) {
+            return null;
+        }
+    };
+
+    // The name of a symbol, null otherwise.
+    private static final Expression.Visitor<String> NAME = new Expression.Visitor<String>() {
+        @Override
+        public String constant(Primitive c) {
+            return null;
+        }
+
+        @Override
+        public String symbol(String name) {
+            return name;
+        }
+
+        @Override
+        public String lambda(String var, Expression exp) {
+            return null;
+        }
+
+        @Override
+        public String application(Expression fun, Expression arg) {
+            return null;
+        }
+    };
+
+    private static final Expression.Visitor<Boolean> IS_LAMBDA = new Expression.Visitor<Boolean>() {
+        @Override
+        public Boolean constant(Primitive c) {
+            return false;
+        }
+
+        @Override
+        public Boolean symbol(String name) {
+            return false;
+        }
+
+        @Override
+        public Boolean lambda(String var, Expression exp) {
+            return true;
+        }
+
+        @Override
+        public Boolean application(Expression fun, Expression arg) {
+            return false;
+        }
+    };
+
+    private static final Primitive.Visitor<Boolean> IS_FUNCTION = new Primitive.Visitor<Boolean>() {
+        @Override
+        public Boolean integer(int i) {
+            return false;
+        }
+
+        @Override
+        public Boolean string(String s) {
+            return false;
+        }
+
+        @Override
+        public Boolean function(PrimitiveFunction f) {
+            return true;
+        }
+    };
+
+    private static int fold(Primitive op, int[] values, int n) {
+        IntStream stream = Arrays.stream(values, 0, n);
+        if (n >= PARALLEL_FOLD_THRESHOLD) {
+            stream = stream.parallel();
+        }
+        return op == SUM ? stream.sum() : stream.reduce(1, (x, y) -> x * y);
+    }
+
+    private static class Balancer extends Expression.Visitor<Expression> {
+        private final Expression.Visitor<Expression> c = Expressions.CONSTRUCTOR;
+        private final Map<String, Primitive> globals;
+        private final Map<String, Integer> shadowed = new HashMap<>(); // the number of binders in scope, by name
+
+        private Balancer(Map<String, Primitive> globals) {
+            this.globals = globals;
+        }
+
+        // SUM or PRD, if that's what e denotes here, else null.
+        private Primitive operator(Expression e) {
+            Primitive p = e.accept(new Expression.Visitor<Primitive>() {
+                @Override
+                public Primitive constant(Primitive c) {
+                    return c;
+                }
+
+                @Override
+                public Primitive symbol(String name) {
+                    return shadowed.containsKey(name) ? null : globals.get(name);
+                }
+
+                @Override
+                public Primitive lambda(String var, Expression exp) {
+                    return null;
+                }
+
+                @Override
+                public Primitive application(Expression fun, Expression arg) {
+                    return null;
+                }
+            });
+            return p == SUM || p == PRD ? p : null;
+        }
+
+        private Expression balanced(Expression op, ArrayList<Expression> operands, int from, int to) {
+            if (to - from == 1) {
+                return operands.get(from);
+            }
+            int mid = (from + to) >>> 1;
+            Expression left = balanced(op, operands, from, mid);
+            return c.application(c.application(op, left), balanced(op, operands, mid, to));
+        }
+
+        // Integer addition and multiplication are associative and commutative, wrapping included, so the operands
+        // can be regrouped and the constants among them combined.
+        private Expression combine(Expression op, Primitive operator, ArrayList<Expression> operands) {
+            ArrayList<Expression> others = new ArrayList<>();
+            int[] constants = new int[operands.size()];
+            int n = 0;
+            for (Expression e : operands) {
+                Primitive p = e.accept(CONSTANT);
+                if (p instanceof IntPrimitive) {
+                    constants[n++] = ((IntPrimitive) p).value;
+                } else {
+                    others.add(e);
+                }
+            }
+            if (n > 0) {
+                others.add(c.constant(primitive(fold(operator, constants, n))));
+            }
+            return balanced(op, others, 0, others.size());
+        }
+
+        @Override
+        public Expression constant(Primitive value) {
+            return c.constant(value);
+        }
+
+        @Override
+        public Expression symbol(String name) {
+            return c.symbol(name);
+        }
+
+        @Override
+        public Expression lambda(String var, Expression exp) {
+            shadowed.merge(var, 1, Integer::sum);
+            Expression body = exp.accept(this);
+            shadowed.compute(var, (name, count) -> count == 1 ? null : count - 1);
+            return c.lambda(var, body);
+        }
+
+        @Override
+        public Expression application(Expression fun, Expression arg) {
+            Expression[] opAndLeft = fun.accept(AS_APPLICATION);
+            Primitive operator = opAndLeft == null ? null : operator(opAndLeft[0]);
+            if (operator == null) {
+                return c.application(fun.accept(this), arg.accept(this));
+            }
+            // Collect the operands of the chain from left to right, with a stack rather than by recursion.
+            ArrayList<Expression> operands = new ArrayList<>();
+            ArrayDeque<Expression> pending = new ArrayDeque<>();
+            pending.push(arg);
+            pending.push(opAndLeft[1]);
+            while (!pending.isEmpty()) {
+                Expression e = pending.pop();
+                Expression[] link = e.accept(AS_APPLICATION);
+                Expression[] inner = link == null ? null : link[0].accept(AS_APPLICATION);
+                if (inner != null && operator(inner[0]) == operator) {
+                    pending.push(link[1]);
+                    pending.push(inner[1]);
+                } else {
+                    operands.add(e.accept(this));
+                }
+            }
+            return combine(opAndLeft[0], operator, operands);
+        }
+    }
+
+    // The number of free occurrences of var in e.
+    private static int occurrences(String var, Expression e) {
+        return e.accept(new Expression.Visitor<Integer>() {
+            @Override
+            public Integer constant(Primitive c) {
+                return 0;
+            }
+
+            @Override
+            public Integer symbol(String name) {
+                return name.equals(var) ? 1 : 0;
+            }
+
+            @Override
+            public Integer lambda(String v, Expression exp) {
+                return v.equals(var) ? 0 : exp.accept(this);
+            }
+
+            @Override
+            public Integer application(Expression fun, Expression arg) {
+                return fun.accept(this) + arg.accept(this);
+            }
+        });
+    }
+
+    // e with value substituted for the free occurrences of var. Binders that would capture a free variable of the
+    // value are renamed.
+    private static Expression substitute(Expression e, String var, Expression value, Set<String> valueFree) {
+        Expression.Visitor<Expression> c = Expressions.CONSTRUCTOR;
+        return e.accept(new Expression.Visitor<Expression>() {
+            @Override
+            public Expression constant(Primitive p) {
+                return c.constant(p);
+            }
+
+            @Override
+            public Expression symbol(String name) {
+                return name.equals(var) ? value : c.symbol(name);
+            }
+
+            @Override
+            public Expression lambda(String v, Expression exp) {
+                if (v.equals(var) || occurrences(var, exp) == 0) {
+                    return c.lambda(v, exp);
+                }
+                if (valueFree.contains(v)) {
+                    Set<String> taken = new HashSet<>(valueFree);
+                    taken.addAll(Expressions.freeVariables(exp));
+                    String fresh = v;
+                    for (int i = 1; taken.contains(fresh); i++) {
+                        fresh = v + i;
+                    }
+                    exp = substitute(exp, v, c.symbol(fresh), Collections.singleton(fresh));
+                    v = fresh;
+                }
+                return c.lambda(v, exp.accept(this));
+            }
+
+            @Override
+            public Expression application(Expression fun, Expression arg) {
+                return c.application(fun.accept(this), arg.accept(this));
+            }
+        });
+    }
+
+    private static class Simplifier extends Expression.Visitor<Expression> {
+        private final Expression.Visitor<Expression> c = Expressions.CONSTRUCTOR;
+        private final Map<String, Integer> bound = new HashMap<>(); // the number of binders in scope, by name
+
+        // Whether evaluating e can't fail or fail to terminate: it's a constant, a lambda or a bound variable.
+        private boolean isValue(Expression e) {
+            return e.accept(new Expression.Visitor<Boolean>() {
+                @Override
+                public Boolean constant(Primitive p) {
+                    return true;
+                }
+
+                @Override
+                public Boolean symbol(String name) {
+                    return bound.containsKey(name);
+                }
+
+                @Override
+                public Boolean lambda(String var, Expression exp) {
+                    return true;
+                }
+
+                @Override
+                public Boolean application(Expression fun, Expression arg) {
+                    return false;
+                }
+            });
+        }
+
+        @Override
+        public Expression constant(Primitive value) {
+            return c.constant(value);
+        }
+
+        @Override
+        public Expression symbol(String name) {
+            return c.symbol(name);
+        }
+
+        // Eta: (lambda (x) (f x)) is f, when f doesn't mention x and is known to be a function -- a lambda or a
+        // function constant. A variable might be bound to an integer, which behaves differently.
+        @Override
+        public Expression lambda(String var, Expression exp) {
+            bound.merge(var, 1, Integer::sum);
+            Expression body = exp.accept(this);
+            bound.compute(var, (name, count) -> count == 1 ? null : count - 1);
+            Expression[] application = body.accept(AS_APPLICATION);
+            if (application != null && var.equals(application[1].accept(NAME))) {
+                Expression f = application[0];
+                Primitive p = f.accept(CONSTANT);
+                if (p != null ? p.accept(IS_FUNCTION) : f.accept(IS_LAMBDA) && occurrences(var, f) == 0) {
+                    return f;
+                }
+            }
+            return c.lambda(var, body);
+        }
+
+        @Override
+        public Expression application(Expression fun, Expression arg) {
+            Expression fun0 = fun.accept(this);
+            Expression arg0 = arg.accept(this);
+            Primitive f = fun0.accept(CONSTANT);
+            Primitive a = arg0.accept(CONSTANT);
+            // Constant folding: (inc n), (n m), which is m to the power n, and ((+ n) m) and ((* n) m).
+            if (a instanceof IntPrimitive) {
+                int m = ((IntPrimitive) a).value;
+                if (f == INC) {
+                    return c.constant(primitive(m + 1));
+                }
+                if (f instanceof IntPrimitive) {
+                    return c.constant(primitive(pow(m, ((IntPrimitive) f).value)));
+                }
+                Expression[] opAndLeft = fun0.accept(AS_APPLICATION);
+                if (opAndLeft != null) {
+                    Primitive op = opAndLeft[0].accept(CONSTANT);
+                    Primitive left = opAndLeft[1].accept(CONSTANT);
+                    if ((op == SUM || op == PRD) && left instanceof IntPrimitive) {
+                        int n = ((IntPrimitive) left).value;
+                        return c.constant(primitive(op == SUM ? n + m : n * m));
+                    }
+                }
+            }
+            // Beta, for a value argument: substituted where it is used at most once, or anywhere if it is a
+            // constant or a variable, so no work or code is duplicated. An argument that isn't used is dropped.
+            if (isValue(arg0)) {
+                Expression reduced = fun0.accept(new Expression.Visitor<Expression>() {
+                    @Override
+                    public Expression constant(Primitive p) {
+                        return null;
+                    }
+
+                    @Override
+                    public Expression symbol(String name) {
+                        return null;
+                    }
+
+                    @Override
+                    public Expression lambda(String var, Expression body) {
+                        if (arg0.accept(IS_LAMBDA) && occurrences(var, body) > 1) {
+                            return null;
+                        }
+                        return substitute(body, var, arg0, Expressions.freeVariables(arg0));
+                    }
+
+                    @Override
+                    public Expression application(Expression fun, Expression arg) {
+                        return null;
+                    }
+                });
+                if (reduced != null) {
+                    return reduced.accept(this);
+                }
+            }
+            return c.application(fun0, arg0);
+        }
+    }
+
+    // Simplifies an expression whose globals have been substituted, before it is compiled. Integer arithmetic on
+    // constants is done now; a lambda applied to a value is reduced, if that duplicates no work or code; and a
+    // lambda which only passes its argument to a function is replaced by that function. Each rewrite makes the
+    // expression smaller, so this terminates. Arguments which might fail or not terminate are kept, as are the
+    // lambdas they are passed to, so the value, failures included, is unchanged.
+    public static Expression optimize(Expression input) {
+        return input.accept(new Simplifier());
+    }
+
+    // Rebuilds each chain of additions, or of multiplications, as a balanced tree of depth log n, so evaluating
+    // it needs little stack however long it is; constant operands are folded into one, in parallel for long chains.
+    // Operators are recognised as the constants SUM and PRD or as names bound to them in globals, where they aren't
+    // shadowed by a lambda.
+    public static Expression balance(Expression input, Map<String, Primitive> globals) {
+        return input.accept(new Balancer(globals));
+    }
+}
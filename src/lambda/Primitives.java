@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import lisp.Reader;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 /**
  * @author pmilne
@@ -15,12 +14,7 @@ public class Primitives {
             new Primitive.Visitor<Primitive>() {
                 @Override
                 public Primitive integer(int i) {
-                    return new Primitive() {
-                        @Override
-                        public <T> T accept(Visitor<T> visitor) {
-                            return visitor.integer(i);
-                        }
-                    };
+                    return IntPrimitive.valueOf(i);
                 }
 
                 @Override
@@ -76,28 +70,36 @@ public class Primitives {
     }
 
     private static PrimitiveFunction toFunction(int n1) {
-        return arg2 -> arg2.accept(new Primitive.Visitor<Primitive>() {
-            @Override
-            public Primitive integer(int n2) {
-                return primitive(pow(n2, n1));
+        return arg2 -> {
+            if (arg2 instanceof IntPrimitive) {
+                return primitive(pow(((IntPrimitive) arg2).value, n1));
             }
+            return arg2.accept(new Primitive.Visitor<Primitive>() {
+                @Override
+                public Primitive integer(int n2) {
+                    return primitive(pow(n2, n1));
+                }
 
-            @Override
-            public Primitive string(String s2) {
-                throw new NotImplementedException();
-            }
+                @Override
+                public Primitive string(String s2) {
+                    throw new UnsupportedOperationException();
+                }
 
-            @Override
-            public Primitive function(PrimitiveFunction f2) {
-                return primitive(x -> {
-                    Primitive result = x;
-                    for (int i = 0; i < n1; i++) {
-                        result = f2.apply(result);
+                @Override
+                public Primitive function(PrimitiveFunction f2) {
+                    if (Metrics.ENABLED) {
+                        Metrics.ITERATIONS.increment();
                     }
-                    return result;
-                });
-            }
-        });
+                    return primitive(x -> {
+                        Primitive result = x;
+                        for (int i = 0; i < n1; i++) {
+                            result = f2.apply(result);
+                        }
+                        return result;
+                    });
+                }
+            });
+        };
     }
 
     public static final Primitive.Visitor<PrimitiveFunction> TO_FUNCTION = new Primitive.Visitor<PrimitiveFunction>() {
@@ -108,7 +110,7 @@ public class Primitives {
 
         @Override
         public PrimitiveFunction string(String s) {
-            throw new NotImplementedException();
+            throw new UnsupportedOperationException();
         }
 
         @Override
@@ -125,12 +127,12 @@ public class Primitives {
 
         @Override
         public Integer string(String s) {
-            throw new NotImplementedException();
+            throw new UnsupportedOperationException();
         }
 
         @Override
         public Integer function(PrimitiveFunction f) {
-            throw new NotImplementedException();
+            throw new UnsupportedOperationException();
         }
     };
 
@@ -143,7 +145,7 @@ public class Primitives {
     // Constructors
 
     public static Primitive primitive(int i) {
-        return CONSTRUCTOR.integer(i);
+        return IntPrimitive.valueOf(i);
     }
 
     public static Primitive primitive(PrimitiveFunction m) {
@@ -153,6 +155,9 @@ public class Primitives {
     // Accessors
 
     public static int toInt(Primitive p) {
+        if (p instanceof IntPrimitive) {
+            return ((IntPrimitive) p).value;
+        }
         return p.accept(TO_INT);
     }
 
@@ -160,9 +165,13 @@ public class Primitives {
         return p.accept(TO_FUNCTION);
     }
 
+    // A function which always uses its argument, so a call-by-need evaluator may as well evaluate the argument first.
+    public static abstract class Strict implements PrimitiveFunction {
+    }
+
     // Some useful constants
 
-    public static final Primitive INC = primitive(new PrimitiveFunction() {
+    public static final Primitive INC = primitive(new Strict() {
         @Override
         public Primitive apply(Primitive x) {
             return primitive(toInt(x) + 1);
@@ -174,10 +183,16 @@ public class Primitives {
         }
     });
 
-    public static final Primitive SUM = primitive(new PrimitiveFunction() {
+    public static final Primitive SUM = primitive(new Strict() {
         @Override
         public Primitive apply(Primitive x) {
-            return primitive(y -> primitive(toInt(x) + toInt(y)));
+            int n = toInt(x); // the partial application captures its operand unboxed
+            return primitive(new Strict() {
+                @Override
+                public Primitive apply(Primitive y) {
+                    return primitive(n + toInt(y));
+                }
+            });
         }
 
         @Override
@@ -186,10 +201,16 @@ public class Primitives {
         }
     });
 
-    public static final Primitive PRD = primitive(new PrimitiveFunction() {
+    public static final Primitive PRD = primitive(new Strict() {
         @Override
         public Primitive apply(Primitive x) {
-            return primitive(y -> primitive(toInt(x) * toInt(y)));
+            int n = toInt(x);
+            return primitive(new Strict() {
+                @Override
+                public Primitive apply(Primitive y) {
+                    return primitive(n * toInt(y));
+                }
+            });
         }
 
         @Override
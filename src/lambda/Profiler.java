@@ -0,0 +1,125 @@
+package lambda;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler that attributes time to the lambdas of the source, rather than to the anonymous classes the
+ * Compiler generates for them.
+ * <p>
+ * When the JVM is started with -Dlambda.profile=true, compiled code keeps a shadow stack per thread: entering the
+ * body of a lambda pushes the lambda's source expression and leaving it pops it. A Profiler samples the shadow
+ * stacks of all threads at a fixed interval from a thread of its own and counts how often each stack is seen. The
+ * counts are written in the folded format that flame graph tools read: one line per stack, the frames from the
+ * outermost in, separated by semicolons, then a space and the count.
+ * <p>
+ * ENABLED is a constant, so with profiling off compiled code does no work for it. Samples are read without locking,
+ * so a sample taken while a thread pushes or pops may be off by a frame.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Profiler {
+    public static final boolean ENABLED = Boolean.getBoolean("lambda.profile");
+
+    private static final int FRAME_LENGTH = 60;
+
+    // A thread's shadow stack. Only its thread writes it; the depth is volatile so that samplers see the frames.
+    private static final class Stack {
+        private final Thread thread = Thread.currentThread();
+        private Expression[] frames = new Expression[64];
+        private volatile int depth;
+    }
+
+    private static final ConcurrentLinkedQueue<Stack> STACKS = new ConcurrentLinkedQueue<>();
+
+    private static final ThreadLocal<Stack> STACK = ThreadLocal.withInitial(() -> {
+        Stack stack = new Stack();
+        STACKS.add(stack);
+        return stack;
+    });
+
+    public static void enter(Expression source) {
+        Stack stack = STACK.get();
+        int depth = stack.depth;
+        if (depth == stack.frames.length) {
+            stack.frames = Arrays.copyOf(stack.frames, depth * 2);
+        }
+        stack.frames[depth] = source;
+        stack.depth = depth + 1;
+    }
+
+    public static void exit() {
+        Stack stack = STACK.get();
+        stack.depth--;
+    }
+
+    private final long intervalNanos;
+    private final Map<Expression, String> names = new IdentityHashMap<>();
+    private final Map<String, Long> samples = new HashMap<>();
+    private final Thread sampler;
+    private volatile boolean stopped;
+
+    // Starts sampling every 'interval'.
+    public Profiler(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.sampler = new Thread(this::run, "lambda-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    private String name(Expression e) {
+        return names.computeIfAbsent(e, k -> Expressions.toString(k, FRAME_LENGTH).replace(';', ',')
+                .replace('\n', ' '));
+    }
+
+    private void sample() {
+        StringBuilder key = new StringBuilder();
+        for (Stack stack : STACKS) {
+            if (!stack.thread.isAlive()) {
+                STACKS.remove(stack);
+                continue;
+            }
+            int depth = stack.depth;
+            Expression[] frames = stack.frames;
+            if (depth == 0 || depth > frames.length) {
+                continue;
+            }
+            key.setLength(0);
+            for (int i = 0; i < depth; i++) {
+                Expression frame = frames[i];
+                if (frame != null) {
+                    key.append(key.length() == 0 ? "" : ";").append(name(frame));
+                }
+            }
+            samples.merge(key.toString(), 1L, Long::sum);
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            sample();
+            LockSupport.parkNanos(intervalNanos);
+        }
+    }
+
+    // Stops sampling and answers the number of samples of each stack, in folded form.
+    public Map<String, Long> stop() throws InterruptedException {
+        stopped = true;
+        LockSupport.unpark(sampler);
+        sampler.join();
+        return new TreeMap<>(samples);
+    }
+
+    // Stops sampling and writes the samples in the folded format, for flame graph tools.
+    public void stop(Appendable out) throws IOException, InterruptedException {
+        for (Map.Entry<String, Long> entry : stop().entrySet()) {
+            out.append(entry.getKey()).append(' ').append(String.valueOf(entry.getValue())).append('\n');
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package lambda;
+
+/**
+ * A token a reader can't accept. Parsers throw it knowing only the token; the lexer, which knows where the token
+ * starts, rethrows it with its offset and its line and column, both counted from 1.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SyntaxError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public final String token;
+    public final long offset; // -1 if not known
+    public final int line;
+    public final int column;
+
+    public SyntaxError(String token, long offset, int line, int column) {
+        super("Syntax error: " + token + (offset < 0 ? "" : " at line " + line + ", column " + column));
+        this.token = token;
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+    }
+
+    public SyntaxError(String token) {
+        this(token, -1, 0, 0);
+    }
+
+    public boolean hasPosition() {
+        return offset >= 0;
+    }
+}
@@ -0,0 +1,24 @@
+package lambda;
+
+/**
+ * An expression in de Bruijn form: variables are the number of lambdas between their occurrence and their
+ * binder, and free variables have been replaced by constants. See Terms.resolve.
+ */
+public abstract class Term {
+    public abstract <T> T accept(Visitor<T> visitor);
+
+    @Override
+    public String toString() {
+        return accept(Terms.TO_STRING);
+    }
+
+    public static abstract class Visitor<T> {
+        public abstract T constant(Primitive c);
+
+        public abstract T variable(int index);
+
+        public abstract T lambda(Term body);
+
+        public abstract T application(Term fun, Term arg);
+    }
+}
@@ -0,0 +1,113 @@
+package lambda;
+
+import java.util.function.Function;
+
+/**
+ * Constructors and converters for Terms.
+ */
+public class Terms {
+    public static final Term.Visitor<Term> CONSTRUCTOR =
+            new Term.Visitor<Term>() {
+                @Override
+                public Term constant(Primitive c) {
+                    return new Term() {
+                        @Override
+                        public <T> T accept(Visitor<T> visitor) {
+                            return visitor.constant(c);
+                        }
+                    };
+                }
+
+                @Override
+                public Term variable(int index) {
+                    return new Term() {
+                        @Override
+                        public <T> T accept(Visitor<T> visitor) {
+                            return visitor.variable(index);
+                        }
+                    };
+                }
+
+                @Override
+                public Term lambda(Term body) {
+                    return new Term() {
+                        @Override
+                        public <T> T accept(Visitor<T> visitor) {
+                            return visitor.lambda(body);
+                        }
+                    };
+                }
+
+                @Override
+                public Term application(Term fun, Term arg) {
+                    return new Term() {
+                        @Override
+                        public <T> T accept(Visitor<T> visitor) {
+                            return visitor.application(fun, arg);
+                        }
+                    };
+                }
+            };
+
+    @SuppressWarnings("WeakerAccess")
+    public static final Term.Visitor<String> TO_STRING = new Term.Visitor<String>() {
+        @Override
+        public String constant(Primitive c) {
+            return c.toString();
+        }
+
+        @Override
+        public String variable(int index) {
+            return "#" + index;
+        }
+
+        @Override
+        public String lambda(Term body) {
+            return "(lambda " + body.accept(this) + ")";
+        }
+
+        @Override
+        public String application(Term fun, Term arg) {
+            return "(" + fun.accept(this) + " " + arg.accept(this) + ")";
+        }
+    };
+
+    private static final Function<String, Primitive> UNDEFINED = name -> {
+        throw new RuntimeException("Undefined variable: " + name);
+    };
+
+    private static Expression.Visitor<Term> createResolver(List<String> nameStack, Function<String, Primitive> globals) {
+        Term.Visitor<Term> c = CONSTRUCTOR;
+        return new Expression.Visitor<Term>() {
+            @Override
+            public Term constant(Primitive value) {
+                return c.constant(value);
+            }
+
+            @Override
+            public Term symbol(String name) {
+                int index = nameStack == null ? -1 : nameStack.indexOf(name);
+                return index >= 0 ? c.variable(index) : c.constant(globals.apply(name));
+            }
+
+            @Override
+            public Term lambda(String var, Expression exp) {
+                return c.lambda(exp.accept(createResolver(List.create(nameStack, var), globals)));
+            }
+
+            @Override
+            public Term application(Expression fun, Expression arg) {
+                return c.application(fun.accept(this), arg.accept(this));
+            }
+        };
+    }
+
+    // Bound symbols become indices; free ones are looked up in globals, once, and become constants.
+    public static Term resolve(Expression input, Function<String, Primitive> globals) {
+        return input.accept(createResolver(null, globals));
+    }
+
+    public static Term resolve(Expression input) {
+        return resolve(input, UNDEFINED);
+    }
+}
@@ -1,9 +1,15 @@
 package lisp;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+import lambda.AbstractReader;
 import lambda.Expression;
+import lambda.SyntaxError;
 import lambda.Primitives;
 
 /**
@@ -13,44 +19,13 @@ import lambda.Primitives;
  * @author pmilne
  */
 @SuppressWarnings("UnnecessaryInterfaceModifier, WeakerAccess")
-public class Reader {
+public class Reader extends AbstractReader {
     public final Expression.Visitor<Expression> constructor;
 
     public Reader(Expression.Visitor<Expression> constructor) {
         this.constructor = constructor;
     }
 
-    public static class TokenType {
-        public final String pattern;
-        public final VisitorMethod method;
-
-        private TokenType(String pattern, VisitorMethod method) {
-            this.pattern = pattern;
-            this.method = method;
-        }
-
-        //    http://docs.oracle.com/javase/6/docs/api/java/util/regex/Pattern.html
-        public static TokenType[] ALL = {
-                new TokenType("-?\\d+", Parser::number),
-                new TokenType("\\(", Parser::lParen),
-                new TokenType("\\)", Parser::rParen),
-                new TokenType("lambda", Parser::lambda), // this has to come before 'symbol' below as that also matches.
-                new TokenType("[a-zA-Z_]\\w*|\\*|\\+", Parser::symbol),
-                new TokenType("\\s+", Parser::whiteSpace)
-        };
-    }
-
-    private static String getRegex() {
-        StringBuilder buffer = new StringBuilder();
-        for (TokenType tokenType : TokenType.ALL)
-            buffer.append(String.format("|(%s)", tokenType.pattern));
-        return buffer.substring(1);
-    }
-
-    public interface VisitorMethod {
-        public Parser call(Parser t, String s);
-    }
-
     @SuppressWarnings("unused")
     public static abstract class TokenVisitor<T> {
         public abstract T lParen(String s);
@@ -71,7 +46,7 @@ public class Reader {
 
     public static Parser ERROR = new Parser() {
         private Parser error(String s) {
-            throw new RuntimeException("Syntax error: " + s);
+            throw new SyntaxError(s);
         }
 
         @Override
@@ -182,7 +157,7 @@ public class Reader {
 
             @Override
             public Parser number(String s) {
-                return outer.reduce(constructor.constant(Primitives.CONSTRUCTOR.integer(Integer.parseInt(s))));
+                return outer.reduce(constructor.constant(Primitives.CONSTRUCTOR.integer(parseInt(s))));
             }
 
             @Override
@@ -192,6 +167,15 @@ public class Reader {
         };
     }
 
+    // A number too big for an int is a syntax error.
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new SyntaxError(s);
+        }
+    }
+
     private Expression consIfNecessary(Expression e1, Expression e2) {
         return e1 == null ? e2 : constructor.application(e1, e2);
     }
@@ -234,31 +218,260 @@ public class Reader {
         }.reduce(null);
     }
 
-    public static void lex(CharSequence input, Parser parser) {
-        Matcher matcher = Pattern.compile(getRegex()).matcher(input);
-        while (matcher.find()) {
-            TokenType[] types = TokenType.ALL;
-            for (int i = 0; i < types.length; i++) {
-                String s = matcher.group(i + 1); // group 0 is whole regexp
-                if (s != null) {
-                    parser = types[i].method.call(parser, s);
-                    break;
+    // Token texts which carry no information are shared rather than cut out of the input.
+    private static final String L_PAREN = "(";
+    private static final String R_PAREN = ")";
+    private static final String LAMBDA = "lambda";
+    private static final String SUM = "+";
+    private static final String PRODUCT = "*";
+    private static final String WHITE_SPACE = " ";
+    private static final String END_OF_INPUT = "end of input";
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return 'a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' || c == '_';
+    }
+
+    private static boolean isWhiteSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    // Keeps track of where each token starts, to give syntax errors a position.
+    public static class Lexer implements AbstractReader.Lexer {
+        private Parser parser;
+        private final Supplier<Parser> restart;
+        private final Processor<SyntaxError> errors;
+        private long offset = 0;
+        private int line = 1;
+        private int column = 1;
+        private int depth = 0;
+
+        // Skips the rest of a form that failed to parse.
+        private final Parser skipper = new Parser() {
+            @Override
+            public Parser lParen(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser rParen(String s) {
+                return depth == 0 ? restart.get() : this;
+            }
+
+            @Override
+            public Parser number(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser lambda(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser symbol(String s) {
+                return this;
+            }
+
+            @Override
+            public Parser whiteSpace(String s) {
+                return this;
+            }
+        };
+
+        // Syntax errors are thrown.
+        public Lexer(Parser parser) {
+            this.parser = parser;
+            this.restart = null;
+            this.errors = null;
+        }
+
+        // Syntax errors are passed to 'errors', and the lexer skips to the end of the failing top-level form and
+        // carries on with a parser from 'restart'.
+        public Lexer(Supplier<Parser> restart, Processor<SyntaxError> errors) {
+            this.parser = restart.get();
+            this.restart = restart;
+            this.errors = errors;
+        }
+
+        private void recover(SyntaxError e) {
+            SyntaxError error = e.hasPosition() ? e : new SyntaxError(e.token, offset, line, column);
+            if (errors == null) {
+                throw error;
+            }
+            errors.process(error);
+            depth = Math.max(depth, 0);
+            parser = depth == 0 ? restart.get() : skipper;
+        }
+
+        // A form still open at the end of the input is an error, unless it is one being skipped.
+        private void finish() {
+            if (depth > 0 && parser != skipper) {
+                recover(new SyntaxError(END_OF_INPUT));
+            }
+        }
+
+        private void advance(CharSequence input, int begin, int end) {
+            offset += end - begin;
+            column += end - begin;
+            if (isWhiteSpace(input.charAt(begin))) {
+                for (int i = begin; i < end; i++) {
+                    if (input.charAt(i) == '\n') {
+                        line++;
+                        column = end - i;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int lex(CharSequence input, int start, int end, boolean last) {
+            int i = start;
+            while (i < end) {
+                char c = input.charAt(i);
+                int begin = i++;
+                try {
+                    if (c == '(') {
+                        depth++;
+                        parser = parser.lParen(L_PAREN);
+                    } else if (c == ')') {
+                        depth--;
+                        parser = parser.rParen(R_PAREN);
+                    } else if (c == '+') {
+                        parser = parser.symbol(SUM);
+                    } else if (c == '*') {
+                        parser = parser.symbol(PRODUCT);
+                    } else if (c == '-' && i == end && !last) {
+                        return begin; // a sign or not, depending on what follows
+                    } else if (isDigit(c) || c == '-' && i < end && isDigit(input.charAt(i))) {
+                        while (i < end && isDigit(input.charAt(i))) {
+                            i++;
+                        }
+                        if (i == end && !last) {
+                            return begin;
+                        }
+                        parser = parser.number(input.subSequence(begin, i).toString());
+                    } else if (isLetter(c)) {
+                        while (i < end && (isLetter(input.charAt(i)) || isDigit(input.charAt(i)))) {
+                            i++;
+                        }
+                        if (i == end && !last) {
+                            return begin;
+                        }
+                        String s = input.subSequence(begin, i).toString();
+                        parser = s.equals(LAMBDA) ? parser.lambda(LAMBDA) : parser.symbol(s.intern());
+                    } else if (isWhiteSpace(c)) {
+                        while (i < end && isWhiteSpace(input.charAt(i))) {
+                            i++;
+                        }
+                        if (i == end && !last) {
+                            return begin;
+                        }
+                        parser = parser.whiteSpace(WHITE_SPACE);
+                    } else {
+                        throw new SyntaxError(String.valueOf(c));
+                    }
+                } catch (SyntaxError e) {
+                    recover(e);
+                } catch (ProcessorError e) {
+                    throw e.error;
                 }
+                advance(input, begin, i);
+            }
+            if (last) {
+                finish();
             }
+            return i;
         }
     }
 
-    public static interface Processor<T> {
-        void process(T e);
+    // A single pass over the input; only numbers and symbols are copied out of it, and symbols are interned.
+    public static void lex(CharSequence input, Parser parser) {
+        new Lexer(parser).lex(input, 0, input.length(), true);
     }
 
-    public void parse(CharSequence input, Processor<Expression> processor) {
-        lex(input, termParser(new Reduction() {
+    @Override
+    protected Lexer lexer(Processor<Expression> processor, Processor<SyntaxError> errors) {
+        if (errors == null) {
+            return new Lexer(topLevelParser(processor));
+        }
+        return new Lexer(() -> topLevelParser(processor), errors);
+    }
+
+    void parse(Path path, Processor<Expression> processor, long windowSize) throws IOException {
+        lex(path, lexer(processor, null), windowSize);
+    }
+
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    // Answers the {offset, line, column} positions at which to cut input into about 'chunks' pieces of whole
+    // top-level forms, first and last included. A top-level form is an atom or is parenthesized, so white space at
+    // paren depth zero is between forms.
+    private static ArrayList<int[]> boundaries(CharSequence input, int chunks) {
+        int length = input.length();
+        ArrayList<int[]> result = new ArrayList<>();
+        result.add(new int[]{0, 1, 1});
+        int depth = 0;
+        int line = 1;
+        int lineStart = 0;
+        // Unbalanced input is left to the parser.
+        for (int i = 0; i < length && result.size() < chunks && depth >= 0; i++) {
+            char c = input.charAt(i);
+            if (depth == 0 && isWhiteSpace(c) && i >= (long) length * result.size() / chunks) {
+                result.add(new int[]{i, line, i - lineStart + 1});
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        result.add(new int[]{length, 0, 0});
+        return result;
+    }
+
+    // Parses the top-level forms of input in parallel on the pool, in chunks found by a pre-scan of the parens. When
+    // 'ordered', the processor is called from this thread, with the expressions in input order. Otherwise it is
+    // called from the pool's threads as each chunk is parsed, and must be thread-safe. The constructor must be
+    // thread-safe too, as Expressions.CONSTRUCTOR and Interner are.
+    public void parse(CharSequence input, Processor<Expression> processor, ForkJoinPool pool, boolean ordered) {
+        int chunks = Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, input.length() / MIN_CHUNK_SIZE + 1);
+        ArrayList<int[]> boundaries = boundaries(input, chunks);
+        ArrayList<ForkJoinTask<ArrayList<Expression>>> tasks = new ArrayList<>();
+        for (int i = 1; i < boundaries.size(); i++) {
+            int[] start = boundaries.get(i - 1);
+            int end = boundaries.get(i)[0];
+            tasks.add(pool.submit(() -> {
+                ArrayList<Expression> result = new ArrayList<>();
+                Lexer lexer = new Lexer(topLevelParser(ordered ? result::add : processor));
+                lexer.offset = start[0];
+                lexer.line = start[1];
+                lexer.column = start[2];
+                lexer.lex(input, start[0], end, true);
+                return result;
+            }));
+        }
+        for (ForkJoinTask<ArrayList<Expression>> task : tasks) {
+            for (Expression e : task.join()) {
+                processor.process(e);
+            }
+        }
+    }
+
+    private Parser topLevelParser(Processor<Expression> processor) {
+        return termParser(new Reduction() {
             @Override
             public Parser reduce(Expression e) {
-                processor.process(e);
+                process(processor, e);
                 return termParser(this);
             }
-        }));
+        });
     }
 }
\ No newline at end of file
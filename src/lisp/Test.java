@@ -1,6 +1,20 @@
 package lisp;
 
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import lambda.*;
@@ -61,15 +75,62 @@ public class Test {
 
     private static void test(String input, Object... outputs) {
         test(Evaluator::eval, input, outputs);
-//        test(Compiler::eval, input, outputs);
+        test(Compiler::eval, input, outputs);
+        test(BytecodeCompiler::eval, input, outputs);
+        test(Machine::eval, input, outputs);
+        test(LazyEvaluator::eval, input, outputs);
+        test(e -> Compiler.eval(Optimizer.optimize(e)), input, outputs);
     }
 
     private static void test(String input, Class<?> c) {
         test(Evaluator::eval, input, c);
-//        test(Compiler::eval, input, c);
+        test(Compiler::eval, input, c);
+        test(BytecodeCompiler::eval, input, c);
+        test(Machine::eval, input, c);
+        test(LazyEvaluator::eval, input, c);
+        test(e -> Compiler.eval(Optimizer.optimize(e)), input, c);
     }
 
-    public static void main(String[] args) {
+    // Runs the test on a thread with a small stack.
+    private static void testInSmallStack(Function<Expression, Primitive> evaluator, String input, Object... outputs) {
+        Throwable[] failure = {null};
+        Thread thread = new Thread(null, () -> {
+            try {
+                test(evaluator, input, outputs);
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 1 << 16);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+    }
+
+    private static Expression read1(String input) {
+        ArrayList<Expression> result = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR).parse(input, result::add);
+        return result.get(0);
+    }
+
+    // Hands out its input a character at a time, so every token straddles the end of a read.
+    private static class Trickle extends FilterReader {
+        private Trickle(java.io.Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            return super.read(buffer, offset, Math.min(length, 1));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
 //        System.out.println("decomp: " + Decompiler.toExpression(read("((lambda (f) (f (lambda (x) x))))")[0]));
         GLOBALS.put("two", read("(lambda (f x) (f (f x)))")[0]);
         test("(lambda (x) x)", "(lambda (a) a)");
@@ -81,6 +142,9 @@ public class Test {
         test("((lambda (f) (f f)) two inc 0)", 4); // 2^2
         test("((lambda (f) (f f f)) two inc 0)", 16); // 2^4
         test("((lambda (f) (f f f f)) two inc 0)", 65536); // 2^16
+        // Built from a lambda rather than the global, 'two' is lazy under LazyEvaluator, and forcing the result
+        // forces a chain of 65536 suspensions -- on the default stack.
+        test("((lambda (t) ((lambda (f) (f f f f)) t inc 0)) (lambda (f x) (f (f x))))", 65536); // 2^16
 //        test("((lambda (f) (f f f f f)) two)", 0); // 2^65536 - stack overflow
 //        test("((lambda (f) (f f)) (lambda (f) (f f))))", -1); // hangs (correctly)
         test("((lambda (f) (f (f f) f)) two inc 0)", 65536); // 2^16
@@ -102,11 +166,281 @@ public class Test {
         test("(1 (2 3) ((4 5) 6))", 0);
         test("(lambda (x) c)", RuntimeException.class);
         test("1 2", "1", "2");
+        // Expressions that differ only in the names of bound variables are interned to the same node.
+        ArrayList<Expression> interned = new ArrayList<>();
+        new Reader(new Interner()).parse("(lambda (x) (x y)) (lambda (z) (z y)) (lambda (y) (y y))", interned::add);
+        assert interned.get(0) == interned.get(1) && interned.get(0) != interned.get(2);
+        // Code compiled for the first expression is reused for the second, which differs only in bound names.
+        CompilationCache cache = new CompilationCache(16);
+        new Reader(cache.constructor()).parse("((lambda (x) (+ x 1)) 2) ((lambda (y) (+ y 1)) 2)",
+                exp -> {
+                    assert toInt(cache.eval(exp, GLOBALS)) == 3;
+                });
+        assert cache.hits() == 1 && cache.misses() == 1;
+        // Replacing the interner doesn't change the constructor, and keeps the number of nodes held bounded.
+        CompilationCache small = new CompilationCache(1);
+        Expression.Visitor<Expression> constructor = small.constructor();
+        for (int i = 0; i < 200; i++) {
+            int sum = 2 + i;
+            new Reader(small.constructor()).parse("((lambda (x) (+ x " + i + ")) 2)", exp -> {
+                assert toInt(small.eval(exp, GLOBALS)) == sum;
+            });
+        }
+        assert small.constructor() == constructor && small.nodes() <= 32 && small.evictions() == 199;
+        // An unused argument is never evaluated under call-by-need, so this terminates.
+        test(LazyEvaluator::eval, "((lambda (x) 1) ((lambda (f) (f f)) (lambda (f) (f f))))", 1);
+        // The machine keeps its continuation on the heap, so 100000 nested calls fit in a 64k stack.
+        testInSmallStack(Machine::eval, "(100000 (lambda (g x) (inc (g x))) (lambda (x) x) 0)", 100000);
+        // Balancing regroups chains of + and * and folds their constants, but leaves a shadowed + alone.
+        Function<Expression, Primitive> balanced = e -> Compiler.eval(Optimizer.balance(e, GLOBALS));
+        test(balanced, "((lambda (x) (+ (+ (+ 1 x) (* 2 (* x 3))) 4)) 5)", 40);
+        test(balanced, "((lambda (+) (+ 2 3)) *)", 6);
+        // The optimizer does constant arithmetic, reduces lambdas applied to values and eta-reduces.
+        Function<String, String> optimized = s -> Optimizer.optimize(Expressions.substitute(read1(s), GLOBALS))
+                .toString();
+        assert optimized.apply("(+ 1 (* 2 3))").equals("7");
+        assert optimized.apply("((lambda (x) x) 1)").equals("1");
+        assert optimized.apply("(2 3)").equals("9");
+        assert optimized.apply("(lambda (x) (+ x (inc 4)))").equals("(lambda (x) ((+ x) 5))");
+        assert optimized.apply("((lambda (x y) (* x y)) 6 7)").equals("42");
+        assert optimized.apply("(lambda (x) (inc x))").equals("inc");
+        assert optimized.apply("(lambda (f) (lambda (x) (f x)))").equals("(lambda (f) (lambda (x) (f x)))");
+        assert optimized.apply("((lambda (x) 1) (lambda (y) y))").equals("1");
+        assert optimized.apply("((lambda (f) (f f)) (lambda (x) x))").equals("((lambda (f) (f f)) (lambda (x) x))");
+        assert optimized.apply("((lambda (x) 1) (c 2))").equals("((lambda (x) 1) (c 2))");
+        assert optimized.apply("(lambda (y) ((lambda (x) (lambda (y) (x y))) y))")
+                .equals("(lambda (y) (lambda (y1) (y y1)))");
+        // Input read from a stream is lexed as it arrives and gives the same expressions as the whole string.
+        String program = "((lambda (xy) (* xy 12)) -345)  (two 3)\n1";
+        ArrayList<Expression> whole = new ArrayList<>();
+        ArrayList<Expression> streamed = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR).parse(program, whole::add);
+        new Reader(Expressions.CONSTRUCTOR).parse(new Trickle(new StringReader(program)), streamed::add);
+        assert streamed.size() == 3 && streamed.toString().equals(whole.toString());
+        // So does a mapped file, here read through windows of a few bytes.
+        Path file = Files.createTempFile("lambda", ".lisp");
+        try {
+            Files.write(file, program.getBytes(StandardCharsets.US_ASCII));
+            ArrayList<Expression> mapped = new ArrayList<>();
+            new Reader(Expressions.CONSTRUCTOR).parse(file, mapped::add, 7);
+            assert mapped.toString().equals(whole.toString());
+        } finally {
+            Files.delete(file);
+        }
+        // Parsing in parallel gives the same expressions, in order unless the caller allows otherwise.
+        StringBuilder forms = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            forms.append("((lambda (x y) (+ x (* y ").append(i).append("))) two -1)\n").append(i).append(' ');
+        }
+        ArrayList<Expression> sequential = new ArrayList<>();
+        ArrayList<Expression> ordered = new ArrayList<>();
+        Collection<Expression> unordered = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        new Reader(Expressions.CONSTRUCTOR).parse(forms, sequential::add);
+        new Reader(Expressions.CONSTRUCTOR).parse(forms, ordered::add, pool, true);
+        new Reader(Expressions.CONSTRUCTOR).parse(forms, unordered::add, pool, false);
+        pool.shutdown();
+        assert sequential.size() == 20000 && ordered.toString().equals(sequential.toString());
+        ArrayList<String> expected = new ArrayList<>();
+        ArrayList<String> actual = new ArrayList<>();
+        sequential.forEach(e -> expected.add(e.toString()));
+        unordered.forEach(e -> actual.add(e.toString()));
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assert actual.equals(expected);
+        // Syntax errors say where they are; in recovery mode the rest of the failing form is skipped.
+        String malformed = "(inc 1)\n(f (lambda 3 x) (g y))\n) (inc 2)";
+        ArrayList<Expression> recovered = new ArrayList<>();
+        ArrayList<SyntaxError> errors = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR).parse(malformed, recovered::add, errors::add);
+        assert recovered.toString().equals("[(inc 1), (inc 2)]") && errors.size() == 2;
+        assert errors.get(0).line == 2 && errors.get(0).column == 12 && errors.get(0).offset == 19;
+        assert errors.get(1).line == 3 && errors.get(1).column == 1 && errors.get(1).token.equals(")");
+        try {
+            new Reader(Expressions.CONSTRUCTOR).parse(malformed, exp -> {});
+            assert false;
+        } catch (SyntaxError e) {
+            assert e.getMessage().equals("Syntax error: 3 at line 2, column 12");
+        }
+        // A form left open at the end of the input, and a number too big for an int, are syntax errors too.
+        recovered.clear();
+        errors.clear();
+        new Reader(Expressions.CONSTRUCTOR).parse("(inc 1) 99999999999 (inc 2", recovered::add, errors::add);
+        assert recovered.toString().equals("[(inc 1)]") && errors.size() == 2;
+        assert errors.get(0).token.equals("99999999999") && errors.get(0).column == 9;
+        assert errors.get(1).token.equals("end of input") && errors.get(1).offset == 26;
+        for (String truncated : new String[]{"(inc 1) (inc 2", "(add 99999999999 1)"}) {
+            try {
+                new Reader(Expressions.CONSTRUCTOR).parse(truncated, exp -> {});
+                assert false;
+            } catch (SyntaxError e) {
+                assert e.hasPosition();
+            }
+        }
+        // A syntax error thrown by the processor is the caller's, not the reader's: it is neither recovered from
+        // nor given a position.
+        SyntaxError rejected = new SyntaxError("rejected");
+        errors.clear();
+        try {
+            new Reader(Expressions.CONSTRUCTOR).parse("(inc 1) (inc 2)", exp -> {
+                throw rejected;
+            }, errors::add);
+            assert false;
+        } catch (SyntaxError e) {
+            assert e == rejected && !e.hasPosition() && errors.isEmpty();
+        }
+        // Expressions read back from their binary encoding are the ones that were written.
+        BinaryFormat.Writer writer = new BinaryFormat.Writer();
+        ArrayList<Expression> written = new ArrayList<>();
+        new Reader(Expressions.CONSTRUCTOR).parse("two (lambda (x y) (x (lambda (x) (x y)) -7 2147483647)) (y x)",
+                exp -> {
+                    writer.write(exp);
+                    written.add(exp);
+                });
+        ArrayList<Expression> loaded = new ArrayList<>();
+        BinaryFormat.read(ByteBuffer.wrap(writer.toByteArray()), Expressions.CONSTRUCTOR, loaded::add);
+        assert loaded.toString().equals(written.toString());
+        // An image saves definitions in normal form where it can, and loads them back with their values.
+        Map<String, String> definitions = new LinkedHashMap<>();
+        definitions.put("two", "(lambda (f x) (f (f x)))");
+        definitions.put("four", "(two two)");
+        definitions.put("add", "(lambda (x y) (+ x y))");
+        definitions.put("omega", "(lambda (x) (x x))");
+        definitions.put("loop", "(lambda (x) (omega omega))");
+        Path imageFile = Files.createTempFile("lambda", ".image");
+        try {
+            Image.create(definitions, getGlobals(), true).save(imageFile);
+            Image image = Image.load(imageFile, getGlobals());
+            assert image.expression("four").toString().equals("(lambda (a) (lambda (b) (a (a (a (a b))))))");
+            assert image.source("add").equals("(lambda (x y) (+ x y))");
+            assert image.expression("loop").toString().equals("(lambda (x) (omega omega))");
+            new Reader(Expressions.CONSTRUCTOR).parse("(add (four inc 0) 1)", exp -> {
+                assert toInt(Compiler.eval(Expressions.substitute(exp, image.values()))) == 5;
+            });
+        } finally {
+            Files.delete(imageFile);
+        }
+        // Printing is iterative, so a normal form too deep to print recursively can be printed, whole or in part.
+        new Reader(Expressions.CONSTRUCTOR).parse("(17 two)", exp -> {
+            Expression normal = Decompiler.toExpression(Compiler.eval(Expressions.substitute(exp, GLOBALS)));
+            int n = 1 << 17;
+            assert normal.toString().length() == "(lambda (a) (lambda (b) b))".length() + 4 * n;
+            assert Expressions.toString(normal, 30).equals("(lambda (a) (lambda (b) (a (a ...");
+            // Encoding is iterative too, so the normal form can be written and read back.
+            Expression decoded = BinaryFormat.decode(BinaryFormat.encode(normal), Expressions.CONSTRUCTOR);
+            assert decoded.toString().equals(normal.toString());
+        });
+        // An engine runs requests concurrently, each within its own budget of steps, and can cancel them.
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Engine engine = new Engine(getGlobals(), executor, 1000).define("two", "(lambda (f x) (f (f x)))");
+        assert toInt(engine.submit("((lambda (f) (f f f)) two inc 0)").join()) == 16;
+        try {
+            engine.submit("(100000 (lambda (x) (inc x)) 0)").join();
+            assert false;
+        } catch (CompletionException e) {
+            assert e.getCause() instanceof Budget.Exceeded;
+        }
+        // The steps a defined global takes are charged to the request running it, not to the definition.
+        Engine counting = engine.define("count", "(lambda (n) (n (lambda (x) (inc x)) 0))");
+        for (int i = 0; i < 2000; i++) {
+            assert toInt(counting.submit("(two inc 0)").join()) == 2;
+        }
+        assert toInt(counting.submit("(count 500)").join()) == 500;
+        try {
+            counting.submit("(count 100000)").join();
+            assert false;
+        } catch (CompletionException e) {
+            assert e.getCause() instanceof Budget.Exceeded;
+        }
+        Engine unlimited = new Engine(getGlobals(), executor, Long.MAX_VALUE);
+        CompletableFuture<Primitive> forever = unlimited.submit("(2000000000 (lambda (x) (inc x)) 0)");
+        Thread.sleep(100);
+        forever.cancel(true);
+        executor.shutdown();
+        assert forever.isCancelled() && executor.awaitTermination(10, TimeUnit.SECONDS);
+        // Each evaluator's metered code stops when a budget's limit is passed, and says how far it got.
+        Map<String, Function<Expression, Primitive>> metered = new LinkedHashMap<>();
+        metered.put("Evaluator", e -> Evaluator.eval(e, true));
+        metered.put("Compiler", e -> Compiler.eval(e, true));
+        metered.put("BytecodeCompiler", e -> BytecodeCompiler.eval(e, true));
+        metered.put("Machine", e -> Machine.eval(e, true));
+        metered.put("LazyEvaluator", e -> LazyEvaluator.eval(e, true));
+        Expression loop = Expressions.substitute(read1("(100000 (lambda (x) ((lambda (y) y) (inc x))) 0)"), GLOBALS);
+        Expression endless = Expressions.substitute(read1("(2000000000 (lambda (x) ((lambda (y) y) (inc x))) 0)"),
+                GLOBALS);
+        Expression omega = read1("((lambda (f) (f f)) (lambda (f) (f f)))");
+        for (Function<Expression, Primitive> evaluator : metered.values()) {
+            assert toInt(new Budget(1_000_000).run(() -> evaluator.apply(loop))) == 100000;
+            for (Budget.Limit limit : Budget.Limit.values()) {
+                Budget budget = limit == Budget.Limit.STEPS ? new Budget(1000) :
+                        limit == Budget.Limit.ALLOCATION ? new Budget(Long.MAX_VALUE, 10000, Long.MAX_VALUE) :
+                                new Budget(Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.MILLISECONDS.toNanos(10));
+                try {
+                    budget.run(() -> evaluator.apply(endless));
+                    assert false;
+                } catch (Budget.Exceeded e) {
+                    assert e.limit == limit && e.steps > 0;
+                }
+            }
+        }
+        // The machine runs this in constant space, so only a budget stops it.
+        try {
+            Budget budget = new Budget(Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.MILLISECONDS.toNanos(100));
+            budget.run(() -> Machine.eval(omega, true));
+            assert false;
+        } catch (Budget.Exceeded e) {
+            assert e.limit == Budget.Limit.DEADLINE;
+        }
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assert histogram.count() == 1000 && histogram.max() == 1000 && histogram.percentile(0.5) == 511;
+        assert histogram.percentile(1) == 1023;
+        // Run with -Dlambda.metrics=true to test the counters.
+        if (Metrics.ENABLED) {
+            for (Function<Expression, Primitive> evaluator : metered.values()) {
+                Metrics.reset();
+                evaluator.apply(loop);
+                Map<String, Long> counters = Metrics.counters();
+                assert counters.get("iterations") == 1 && counters.get("applications") >= 100000;
+                assert counters.get("entries") >= 200000 && counters.get("closures") >= 1;
+            }
+            String source = "((lambda (f x) (f (f x))) inc 0)";
+            new Engine(getGlobals(), Runnable::run, Long.MAX_VALUE).submit(source).join();
+            assert Metrics.profile(source).steps.count() == 1;
+        }
+        // The profiler samples the shadow stack of each thread, and answers the stacks it saw in folded form.
+        Expression outer = read1("(lambda (f) (f f))");
+        Expression inner = read1("(lambda (x) x)");
+        Profiler profiler = new Profiler(1, TimeUnit.MILLISECONDS);
+        Profiler.enter(outer);
+        Profiler.enter(inner);
+        Thread.sleep(50);
+        Profiler.exit();
+        Profiler.exit();
+        StringBuilder folded = new StringBuilder();
+        profiler.stop(folded);
+        assert folded.toString().contains("(lambda (f) (f f));(lambda (x) x) ");
+        // Run with -Dlambda.profile=true to test the compiler's tags.
+        if (Profiler.ENABLED) {
+            profiler = new Profiler(1, TimeUnit.MILLISECONDS);
+            Compiler.eval(Expressions.substitute(read1("(1000000 (lambda (x) ((lambda (y) y) (inc x))) 0)"), GLOBALS));
+            assert profiler.stop().keySet().stream().anyMatch(stack -> stack.contains(";(lambda (x) "));
+        }
         if (TEST_PERFORMANCE) {
-            System.out.println("Starting evaluator performance test (typical run time is ~105s)... ");
-            long start = System.currentTimeMillis();
-            test("((lambda (f) (f f f (f f))) two inc 0)", 0); // 2^32
-            System.out.println("Time: " + (System.currentTimeMillis() - start)/1000.0 + "s");
+            // Two is bound here rather than taken from GLOBALS, where Compiler built it, so that each evaluator
+            // runs the loop in code of its own.
+            Map<String, Function<Expression, Primitive>> evaluators = new LinkedHashMap<>();
+            evaluators.put("Compiler", Compiler::eval);
+            evaluators.put("BytecodeCompiler", BytecodeCompiler::eval);
+            for (Map.Entry<String, Function<Expression, Primitive>> evaluator : evaluators.entrySet()) {
+                System.out.println("Starting " + evaluator.getKey() + " performance test... ");
+                long start = System.currentTimeMillis();
+                test(evaluator.getValue(), "((lambda (t) ((lambda (f) (f f f (f f))) t inc 0)) " +
+                        "(lambda (f x) (f (f x))))", 0); // 2^32
+                System.out.println("Time: " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+            }
         }
     }
 }
\ No newline at end of file